@@ -0,0 +1,123 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the variable length number codec used by every patch command,
+ * {@link PatchWriter#encode} on the creating side, and both the byte at a time
+ * {@link PatcherIO#decode(ByteBuffer)} and the word at a time
+ * {@link PatchReader#readNumber()} on the applying side. Each invocation
+ * handles a batch of numbers no larger than the selected maximum.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class CodecBenchmark {
+
+    /**
+     * Numbers encoded or decoded per invocation.
+     */
+    private static final int BATCH = 4096;
+    @Param({"127", "16383", "2097151", "4294967295"})
+    public long maximum;
+    private final long[] numbers = new long[BATCH];
+    /**
+     * Room for a batch of the largest possible numbers.
+     */
+    private final ByteBuffer out = ByteBuffer.allocate(BATCH * 10);
+    private ByteBuffer encoded;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        Random random = new Random(maximum);
+        for (int i = 0; i < BATCH; i++) {
+            numbers[i] = (long) (random.nextDouble() * maximum);
+        }
+        out.clear();
+        for (long number : numbers) {
+            PatchWriter.encode(out, number);
+        }
+        out.flip();
+        encoded = ByteBuffer.allocate(out.remaining()).put(out);
+        encoded.flip();
+    }
+
+    @Benchmark
+    public long encode(Throughput throughput) throws IOException {
+        out.clear();
+        for (long number : numbers) {
+            PatchWriter.encode(out, number);
+        }
+        throughput.bytes += out.position();
+        return out.position();
+    }
+
+    @Benchmark
+    public long decode(Throughput throughput) throws IOException {
+        encoded.rewind();
+        long sum = 0;
+        for (int i = 0; i < BATCH; i++) {
+            sum += PatcherIO.decode(encoded);
+        }
+        throughput.bytes += encoded.limit();
+        return sum;
+    }
+
+    @Benchmark
+    public long read(Throughput throughput) throws IOException {
+        encoded.rewind();
+        PatchReader reader = new PatchReader(encoded);
+        long sum = 0;
+        for (int i = 0; i < BATCH; i++) {
+            sum += reader.readNumber();
+        }
+        throughput.bytes += encoded.limit();
+        return sum;
+    }
+}
@@ -0,0 +1,199 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
+/**
+ * Generated pair of source and target files for the benchmarks. Every corpus
+ * starts from a pseudo random source, which the kind of corpus then modifies
+ * to produce the target. The files are written in chunks so that corpora of a
+ * gigabyte or more can be generated without holding them in memory.
+ */
+final class Corpus {
+
+    /**
+     * Size of the chunks in which files are generated.
+     */
+    private static final int CHUNK_SIZE = 1 << 20;
+    /**
+     * Directory holding the generated files.
+     */
+    final File directory;
+    /**
+     * The generated original file.
+     */
+    final File source;
+    /**
+     * The generated modified file.
+     */
+    final File target;
+
+    /**
+     * Generates a new corpus in a temporary directory.
+     *
+     * @param kind one of RANDOM, RUNS, SMALL_EDITS, INSERTED or SHIFTED
+     * @param size size of the source, such as 1KB, 64MB or 1GB
+     */
+    Corpus(String kind, String size) throws IOException {
+        directory = File.createTempFile("jbeat-corpus", "");
+        directory.delete();
+        directory.mkdir();
+        source = new File(directory, "source");
+        target = new File(directory, "target");
+        long length = parseSize(size);
+        Random random = new Random(length ^ kind.hashCode());
+
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(source), CHUNK_SIZE);
+        try {
+            byte[] chunk = new byte[CHUNK_SIZE];
+            for (long written = 0; written < length; written += CHUNK_SIZE) {
+                int count = (int) Math.min(CHUNK_SIZE, length - written);
+                if (kind.equals("RUNS")) {
+                    runs(random, chunk, count);
+                } else {
+                    random.nextBytes(chunk);
+                }
+                out.write(chunk, 0, count);
+            }
+        } finally {
+            out.close();
+        }
+
+        RandomAccessFile in = new RandomAccessFile(source, "r");
+        out = new BufferedOutputStream(new FileOutputStream(target), CHUNK_SIZE);
+        try {
+            ByteBuffer original = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+            if (kind.equals("RANDOM")) {
+                byte[] chunk = new byte[CHUNK_SIZE];
+                for (long written = 0; written < length; written += CHUNK_SIZE) {
+                    random.nextBytes(chunk);
+                    out.write(chunk, 0, (int) Math.min(CHUNK_SIZE, length - written));
+                }
+            } else if (kind.equals("RUNS")) {
+                // replace a kilobyte with a new run every 64 kilobytes
+                byte[] run = new byte[1024];
+                for (long offset = 0; offset < length; offset += 65536) {
+                    int count = (int) Math.min(65536 - run.length, length - offset);
+                    copy(original, offset, count, out);
+                    runs(random, run, run.length);
+                    out.write(run, 0, (int) Math.min(run.length, length - offset - count));
+                }
+            } else if (kind.equals("SMALL_EDITS")) {
+                // flip one byte every four kilobytes
+                for (long offset = 0; offset < length; offset += 4096) {
+                    int count = (int) Math.min(4095, length - offset);
+                    copy(original, offset, count, out);
+                    if (offset + count < length) {
+                        out.write(~original.get((int) (offset + count)));
+                    }
+                }
+            } else if (kind.equals("INSERTED")) {
+                // insert a block of new data every 64 kilobytes
+                byte[] insert = new byte[256];
+                for (long offset = 0; offset < length; offset += 65536) {
+                    copy(original, offset, (int) Math.min(65536, length - offset), out);
+                    random.nextBytes(insert);
+                    out.write(insert);
+                }
+            } else if (kind.equals("SHIFTED")) {
+                // move the first third to the end, and shift everything along
+                long third = length / 3;
+                out.write(new byte[]{1, 2, 3, 4, 5, 6, 7});
+                copy(original, third, (int) (length - third), out);
+                copy(original, 0, (int) third, out);
+            } else {
+                throw new IllegalArgumentException("Unknown corpus kind " + kind);
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+
+    /**
+     * Parses a size such as 512, 4KB, 64MB or 1GB.
+     */
+    static long parseSize(String size) {
+        long unit = 1;
+        if (size.endsWith("KB")) {
+            unit = 1L << 10;
+        } else if (size.endsWith("MB")) {
+            unit = 1L << 20;
+        } else if (size.endsWith("GB")) {
+            unit = 1L << 30;
+        }
+        return Long.parseLong((unit == 1) ? size : size.substring(0, size.length() - 2)) * unit;
+    }
+
+    /**
+     * Fills the array with runs of a random byte, of random length.
+     */
+    private static void runs(Random random, byte[] into, int count) {
+        for (int offset = 0; offset < count;) {
+            int length = Math.min(1 + random.nextInt(4096), count - offset);
+            byte value = (byte) random.nextInt(256);
+            for (int i = 0; i < length; i++) {
+                into[offset++] = value;
+            }
+        }
+    }
+
+    private static void copy(ByteBuffer from, long offset, int length, OutputStream out) throws IOException {
+        byte[] chunk = new byte[Math.min(CHUNK_SIZE, Math.max(length, 0))];
+        for (int copied = 0; copied < length; copied += chunk.length) {
+            int count = Math.min(chunk.length, length - copied);
+            ByteBuffer data = from.duplicate();
+            data.position((int) (offset + copied));
+            data.get(chunk, 0, count);
+            out.write(chunk, 0, count);
+        }
+    }
+
+    /**
+     * Deletes the corpus and anything else written to its directory.
+     */
+    void delete() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+}
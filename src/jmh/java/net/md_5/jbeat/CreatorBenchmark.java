@@ -0,0 +1,152 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks the patch creators. {@code doPatch} measures differencing alone
+ * against files mapped once per trial, while {@code create} measures the
+ * whole process including mapping, checksums and writing, and reports the
+ * resulting patch size. The delta creator is limited to inputs whose
+ * combined size fits in a suffix array, so pass {@code -p size=...} to skip
+ * the 1GB corpora when benchmarking it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class CreatorBenchmark {
+
+    @Param({"RANDOM", "RUNS", "SMALL_EDITS", "INSERTED", "SHIFTED"})
+    public String kind;
+    @Param({"1KB", "1MB", "64MB", "1GB"})
+    public String size;
+    @Param({"linear", "block", "delta"})
+    public String creator;
+    private Corpus corpus;
+    private File patch;
+    /**
+     * Creator with its files mapped, used for the differencing benchmark.
+     */
+    private PatchCreator differ;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        corpus = new Corpus(kind, size);
+        patch = new File(corpus.directory, "patch");
+        differ = newCreator();
+        differ.sourceLength = differ.sourceFile.length();
+        differ.targetLength = differ.targetFile.length();
+        differ.source = SegmentedBuffer.map(differ.sourceFile.getChannel(), FileChannel.MapMode.READ_ONLY, differ.sourceLength);
+        differ.target = SegmentedBuffer.map(differ.targetFile.getChannel(), FileChannel.MapMode.READ_ONLY, differ.targetLength);
+        differ.prepare();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        differ.sourceFile.close();
+        differ.targetFile.close();
+        differ.out.close();
+        corpus.delete();
+    }
+
+    private PatchCreator newCreator() throws IOException {
+        if (creator.equals("linear")) {
+            return new LinearCreator(corpus.source, corpus.target, patch);
+        } else if (creator.equals("block")) {
+            return new BlockCreator(corpus.source, corpus.target, patch);
+        } else if (creator.equals("delta")) {
+            return new DeltaCreator(corpus.source, corpus.target, patch);
+        }
+        throw new IllegalArgumentException("Unknown creator " + creator);
+    }
+
+    @Benchmark
+    public void doPatch(Throughput throughput, Blackhole blackhole) throws IOException {
+        CountingSink ops = new CountingSink();
+        differ.doPatch(ops, 0, differ.targetLength);
+        blackhole.consume(ops.commands);
+        throughput.bytes += differ.targetLength;
+    }
+
+    @Benchmark
+    public void create(Throughput throughput, PatchRatio ratio) throws IOException {
+        newCreator().create();
+        throughput.bytes += corpus.target.length();
+        ratio.add(patch.length(), corpus.target.length());
+    }
+
+    /**
+     * Sink which only counts the commands it is given.
+     */
+    private static final class CountingSink implements OpSink {
+
+        private long commands;
+
+        @Override
+        public void sourceRead(long length) {
+            commands++;
+        }
+
+        @Override
+        public void targetRead(long length) {
+            commands++;
+        }
+
+        @Override
+        public void sourceCopy(long offset, long length) {
+            commands++;
+        }
+
+        @Override
+        public void targetCopy(long offset, long length) {
+            commands++;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks patch application, both through the stream based
+ * {@link PatcherIO} and the memory mapped {@link Patcher}. Patches are made
+ * once per trial with the selected creator, linear patches being mostly
+ * literal data and block patches mostly copies.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class PatcherBenchmark {
+
+    @Param({"RANDOM", "RUNS", "SMALL_EDITS", "INSERTED", "SHIFTED"})
+    public String kind;
+    @Param({"1KB", "1MB", "64MB", "1GB"})
+    public String size;
+    @Param({"linear", "block"})
+    public String creator;
+    private Corpus corpus;
+    private File patch, output;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        corpus = new Corpus(kind, size);
+        patch = new File(corpus.directory, "patch");
+        output = new File(corpus.directory, "output");
+        if (creator.equals("linear")) {
+            new LinearCreator(corpus.source, corpus.target, patch).create();
+        } else if (creator.equals("block")) {
+            new BlockCreator(corpus.source, corpus.target, patch).create();
+        } else {
+            throw new IllegalArgumentException("Unknown creator " + creator);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        corpus.delete();
+    }
+
+    @Benchmark
+    public void stream(Throughput throughput) throws IOException {
+        new PatcherIO(new FileInputStream(patch), new FileInputStream(corpus.source), new NullOutputStream()).patch();
+        throughput.bytes += corpus.target.length();
+    }
+
+    @Benchmark
+    public void mapped(Throughput throughput) throws IOException {
+        new Patcher(patch, corpus.source, output).patch();
+        throughput.bytes += corpus.target.length();
+    }
+
+    /**
+     * Discards everything written to it.
+     */
+    private static final class NullOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Creates patches from one source to many targets. The source is mapped and
+ * checksummed once, and shared read only by all of the creators, which run on
+ * a bounded pool of threads. Block patches also share a single index of the
+ * source.
+ */
+public final class BatchCreator {
+
+    /**
+     * The patch creators which may be used.
+     */
+    public enum Style {
+
+        LINEAR, DELTA, BLOCK
+    }
+    /**
+     * The clean, unmodified file.
+     */
+    private final File source;
+    /**
+     * The patch creator to use for each target.
+     */
+    private final Style style;
+    /**
+     * Targets to difference with the source.
+     */
+    private final List<File> targets = new ArrayList<File>();
+    /**
+     * Location of the patch for each target.
+     */
+    private final List<File> outputs = new ArrayList<File>();
+    /**
+     * Number of patches created at once.
+     */
+    private int threads = Runtime.getRuntime().availableProcessors();
+    /**
+     * Cache of source indexes for block patches, or null for one shared by
+     * this batch only.
+     */
+    private SourceIndexCache indexCache;
+
+    /**
+     * Creates a new batch. Targets must be added with
+     * {@link #add(File, File)}, and then all patches created by calling
+     * {@link #create()}.
+     *
+     * @param source file, which the patch applicator will have access to
+     * @param style of patch to create
+     */
+    public BatchCreator(File source, Style style) {
+        this.source = source;
+        this.style = style;
+    }
+
+    /**
+     * Adds a target to the batch.
+     *
+     * @param target file which has been changed from the source
+     * @param output location to which its patch will be output
+     */
+    public void add(File target, File output) {
+        targets.add(target);
+        outputs.add(output);
+    }
+
+    /**
+     * Sets the number of patches created at once, the number of processors
+     * by default.
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Threads must be at least 1");
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * Sets a cache from which the index of the source is taken for block
+     * patches.
+     */
+    public void setIndexCache(SourceIndexCache indexCache) {
+        this.indexCache = indexCache;
+    }
+
+    /**
+     * Creates every patch in the batch. If any fails the first failure is
+     * thrown, once those already running have finished.
+     */
+    public void create() throws IOException {
+        // map and checksum the source once
+        RandomAccessFile sourceFile = new RandomAccessFile(source, "r");
+        final long sourceLength;
+        final SegmentedBuffer mapped;
+        try {
+            sourceLength = sourceFile.length();
+            mapped = SegmentedBuffer.map(sourceFile.getChannel(), FileChannel.MapMode.READ_ONLY, sourceLength);
+        } finally {
+            sourceFile.close();
+        }
+        final long sourceChecksum = mapped.checksum(0, sourceLength);
+        final SourceIndexCache cache = (indexCache == null) ? new SourceIndexCache(null, Long.MAX_VALUE) : indexCache;
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            List<Future<Void>> patches = new ArrayList<Future<Void>>();
+            for (int i = 0; i < targets.size(); i++) {
+                final File target = targets.get(i), output = outputs.get(i);
+                patches.add(pool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        PatchCreator creator = creator(target, output, cache);
+                        creator.setSource(mapped, sourceLength, sourceChecksum);
+                        creator.create();
+                        return null;
+                    }
+                }));
+            }
+            ExecutionException failure = null;
+            for (Future<Void> patch : patches) {
+                try {
+                    patch.get();
+                } catch (ExecutionException ex) {
+                    if (failure == null) {
+                        failure = ex;
+                    }
+                }
+            }
+            if (failure != null) {
+                throw Shared.rethrow(failure);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted whilst creating patches");
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Creates the patch creator for one target.
+     */
+    private PatchCreator creator(File target, File output, SourceIndexCache cache) throws FileNotFoundException {
+        PatchCreator creator = BatchCreator.creator(style, source, target, output);
+        if (creator instanceof BlockCreator) {
+            ((BlockCreator) creator).setIndexCache(cache);
+        }
+        return creator;
+    }
+
+    /**
+     * Creates a patch creator of the specified style.
+     */
+    static PatchCreator creator(Style style, File source, File target, File output) throws FileNotFoundException {
+        switch (style) {
+            case LINEAR:
+                return new LinearCreator(source, target, output);
+            case DELTA:
+                return new DeltaCreator(source, target, output);
+            default:
+                return new BlockCreator(source, target, output);
+        }
+    }
+
+    public static void main(final String[] arguments) throws IOException {
+        if (arguments == null || arguments.length < 4 || arguments.length % 2 != 0) {//Check for valid arguments
+            System.out.println("You must have valid arguments!");
+            System.out.println("The first argument, should be the style of patch to create: linear, delta or block.");
+            System.out.println("The second argument, should be where the source file is located (the original file which every patch applies to).");
+            System.out.println("The remaining arguments, should be pairs of where a modified file is located, and where its patch should be put.");
+            return;
+        }
+        Style style;
+        try {
+            style = Style.valueOf(arguments[0].toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException ex) {
+            System.out.println("Unknown patch style \"" + arguments[0] + "\"!");
+            return;
+        }
+        File sourceFile = new File(arguments[1]);
+        if (!sourceFile.exists()) {//Check if the source file exists, if it doesn't, throw a FileNotFoundException.
+            throw new FileNotFoundException("The source file does not exist at location \"" + arguments[1] + "\"!");
+        }
+        BatchCreator batch = new BatchCreator(sourceFile, style);
+        for (int i = 2; i < arguments.length; i += 2) {
+            File targetFile = new File(arguments[i]);
+            if (!targetFile.exists()) {//Check if each modified file exists, if it doesn't, throw a FileNotFoundException.
+                throw new FileNotFoundException("The modified file does not exist at location \"" + arguments[i] + "\"!");
+            }
+            batch.add(targetFile, new File(arguments[i + 1]));
+        }
+        batch.create();
+    }
+}
@@ -0,0 +1,201 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Creates delta compressed patches by fingerprinting fixed size blocks of the
+ * source file, and rolling a hash over the target to find them again. Every
+ * block found is extended in both directions and emitted as a copy. <p>
+ * Memory usage is proportional to the source length divided by the block
+ * size, and each target byte is hashed once, making this the creator of
+ * choice for very large files. Matches shorter than a block may be missed,
+ * so patches are somewhat larger than those made by {@link DeltaCreator}.
+ */
+public final class BlockCreator extends PatchCreator {
+
+    /**
+     * Default size of the indexed source blocks.
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 64;
+    /**
+     * Size of the indexed source blocks.
+     */
+    private final int blockSize;
+    /**
+     * Index of the source blocks.
+     */
+    private BlockIndex index;
+    /**
+     * Cache of source indexes, or null to always build the index.
+     */
+    private SourceIndexCache indexCache;
+
+    public BlockCreator(File original, File modified, File output) throws FileNotFoundException {
+        this(original, modified, output, null);
+    }
+
+    public BlockCreator(File original, File modified, File output, String header) throws FileNotFoundException {
+        this(original, modified, output, header, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Creates a new block patch creator instance.
+     *
+     * @param original file, which the patch applicator will have access to
+     * @param modified file which has been changed from the original
+     * @param output location to which the patch will be output
+     * @param header to be used as beat metadata
+     * @param blockSize size of the source blocks to index, smaller blocks find
+     * more matches at the cost of memory
+     * @throws FileNotFoundException when one of the files cannot be opened for
+     * read or write access
+     */
+    public BlockCreator(File original, File modified, File output, String header, int blockSize) throws FileNotFoundException {
+        super(original, modified, output, header);
+        this.blockSize = checkBlockSize(blockSize);
+    }
+
+    public BlockCreator(ByteBuffer original, ByteBuffer modified, WritableByteChannel output) {
+        this(original, modified, output, null, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Creates a new block patch creator instance over data already in memory,
+     * from the position to the limit of each buffer. The patch is written
+     * straight to the channel, which is left open.
+     *
+     * @param original data, which the patch applicator will have access to
+     * @param modified data which has been changed from the original
+     * @param output channel to which the patch will be written
+     * @param header to be used as beat metadata
+     * @param blockSize size of the source blocks to index, smaller blocks find
+     * more matches at the cost of memory
+     */
+    public BlockCreator(ByteBuffer original, ByteBuffer modified, WritableByteChannel output, String header, int blockSize) {
+        super(original, modified, output, header);
+        this.blockSize = checkBlockSize(blockSize);
+    }
+
+    public BlockCreator(byte[] original, byte[] modified, WritableByteChannel output) {
+        this(ByteBuffer.wrap(original), ByteBuffer.wrap(modified), output);
+    }
+
+    /**
+     * Creates a new block patch creator instance over the remaining data of
+     * two channels, which are read to their end, or mapped if file channels.
+     *
+     * @throws IOException when either channel cannot be read
+     */
+    public BlockCreator(ReadableByteChannel original, ReadableByteChannel modified, WritableByteChannel output) throws IOException {
+        this(readFully(original), readFully(modified), output);
+    }
+
+    private static int checkBlockSize(int blockSize) {
+        if (blockSize < 4) {
+            throw new IllegalArgumentException("Block size must be at least 4 bytes");
+        }
+        return blockSize;
+    }
+
+    /**
+     * Sets a cache from which the index of the source is taken, so that it is
+     * only built the first time a patch is created against that source.
+     *
+     * @param indexCache the cache to use, or null to always build the index
+     */
+    public void setIndexCache(SourceIndexCache indexCache) {
+        this.indexCache = indexCache;
+    }
+
+    @Override
+    protected void prepare() throws IOException {
+        if (indexCache != null) {
+            index = indexCache.get(source, sourceLength, sourceChecksum(), blockSize);
+        } else {
+            index = new BlockIndex(source, sourceLength, blockSize);
+        }
+    }
+
+    @Override
+    protected long indexSize() {
+        return index.size();
+    }
+
+    @Override
+    protected void doPatch(OpSink ops, long start, long end) throws IOException {
+        diff(ops, index, source, sourceLength, target, start, end);
+    }
+
+    /**
+     * Differences the target bytes from {@code start} up to {@code end}
+     * against the source blocks of an index, passing commands to the sink.
+     */
+    static void diff(OpSink ops, BlockIndex index, SegmentedBuffer source, long sourceLength, SegmentedBuffer target, long start, long end) throws IOException {
+        int blockSize = index.blockSize;
+        long offset = start, literal = start;
+        int hash = (end - start >= blockSize) ? index.hash(target, start) : 0;
+        while (offset + blockSize <= end) {
+            long sourceOffset = index.find(hash);
+            if (sourceOffset >= 0 && matchLength(source, sourceOffset, target, offset, blockSize) == blockSize) {
+                // extend backwards over any pending literal bytes
+                long back = 0;
+                while (offset - back > literal && sourceOffset - back > 0
+                        && source.get(sourceOffset - back - 1) == target.get(offset - back - 1)) {
+                    back++;
+                }
+                // and forwards as far as the data matches
+                long limit = Math.min(sourceLength - sourceOffset, end - offset) - blockSize;
+                long matched = back + blockSize + matchLength(source, sourceOffset + blockSize, target, offset + blockSize, limit);
+                offset -= back;
+                sourceOffset -= back;
+
+                ops.targetRead(offset - literal);
+                ops.sourceCopy(sourceOffset, matched);
+                offset += matched;
+                literal = offset;
+                if (offset + blockSize <= end) {
+                    hash = index.hash(target, offset);
+                }
+            } else {
+                if (offset + blockSize < end) {
+                    hash = index.roll(hash, target.get(offset), target.get(offset + blockSize));
+                }
+                offset++;
+            }
+        }
+        ops.targetRead(end - literal);
+    }
+}
@@ -0,0 +1,216 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * Open addressing hash table of the fixed size blocks of a source file, keyed
+ * by their Rabin-Karp fingerprint. Only the first block with any given
+ * fingerprint is kept, so memory is proportional to the number of blocks. <p>
+ * The table is a flat run of little endian integers, so that it may be saved
+ * as is and later mapped back in from a file by {@link SourceIndexCache}.
+ */
+final class BlockIndex {
+
+    /**
+     * Multiplier of the rolling polynomial hash.
+     */
+    private static final int PRIME = 0x01000193;
+    /**
+     * Most blocks indexed, beyond which only every so many blocks are, to
+     * keep the table within a single buffer.
+     */
+    private static final int MAX_BLOCKS = 1 << 25;
+    /**
+     * Size of each indexed block.
+     */
+    final int blockSize;
+    /**
+     * Offset of the first indexed block.
+     */
+    private final long base;
+    /**
+     * Multiplier for the byte leaving the rolling window, PRIME ^ (blockSize -
+     * 1).
+     */
+    private final int power;
+    /**
+     * Raw bytes of the table.
+     */
+    private final ByteBuffer data;
+    /**
+     * Pairs of the fingerprint and the block number plus one stored in each
+     * slot, a block number of 0 marks an empty slot.
+     */
+    private final IntBuffer table;
+    /**
+     * Mask to wrap slot numbers to the table size.
+     */
+    private final int mask;
+    /**
+     * Shift which takes the top bits of a mixed fingerprint as a slot number.
+     */
+    private final int shift;
+
+    /**
+     * Fingerprints every whole block of the source, or for sources of more
+     * than {@link #MAX_BLOCKS} blocks, evenly spaced blocks. Matches of a few
+     * blocks are still always found.
+     *
+     * @param source the buffer to index
+     * @param length number of bytes of the buffer to index
+     * @param blockSize size of each block, larger blocks use less memory but
+     * miss shorter matches
+     */
+    BlockIndex(SegmentedBuffer source, long length, int blockSize) {
+        this(source, 0, length, blockSize, 1);
+    }
+
+    /**
+     * Fingerprints only every {@code stride} whole blocks of the source from
+     * {@code start} up to {@code end}, so matches shorter than that many
+     * blocks plus one may be missed.
+     */
+    BlockIndex(SegmentedBuffer source, long start, long end, int blockSize, int stride) {
+        if (blockSize < 4) {
+            throw new IllegalArgumentException("Block size must be at least 4 bytes");
+        }
+        this.blockSize = blockSize;
+        this.base = start;
+        this.power = power(blockSize);
+        long blocks = (end - start) / blockSize;
+        stride = (int) Math.max(stride, (blocks + MAX_BLOCKS - 1) / MAX_BLOCKS);
+        int count = (int) ((blocks + stride - 1) / stride);
+        // keep the table at most three quarters full
+        int capacity = 1;
+        while (capacity <= count + (count / 3)) {
+            capacity <<= 1;
+        }
+        data = ByteBuffer.allocate(capacity * 8).order(ByteOrder.LITTLE_ENDIAN);
+        table = data.asIntBuffer();
+        mask = capacity - 1;
+        shift = 32 - Integer.numberOfTrailingZeros(capacity);
+        for (int block = 0; block < blocks; block += stride) {
+            int hash = hash(source, start + (long) block * blockSize);
+            int slot = slot(hash);
+            while (table.get((slot << 1) + 1) != 0 && table.get(slot << 1) != hash) {
+                slot = (slot + 1) & mask;
+            }
+            if (table.get((slot << 1) + 1) == 0) {
+                table.put(slot << 1, hash);
+                table.put((slot << 1) + 1, block + 1);
+            }
+        }
+    }
+
+    /**
+     * Wraps a table previously built over a whole source for the same block
+     * size, as returned by {@link #data()}.
+     */
+    BlockIndex(ByteBuffer data, int blockSize) {
+        int capacity = data.remaining() / 8;
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Table size must be a power of two");
+        }
+        this.blockSize = blockSize;
+        this.base = 0;
+        this.power = power(blockSize);
+        this.data = data.slice().order(ByteOrder.LITTLE_ENDIAN);
+        this.table = this.data.asIntBuffer();
+        this.mask = capacity - 1;
+        this.shift = 32 - Integer.numberOfTrailingZeros(capacity);
+    }
+
+    private static int power(int blockSize) {
+        int power = 1;
+        for (int i = 1; i < blockSize; i++) {
+            power *= PRIME;
+        }
+        return power;
+    }
+
+    /**
+     * Returns the raw bytes of the table, from which an equal index may be
+     * created.
+     */
+    ByteBuffer data() {
+        return data.duplicate();
+    }
+
+    /**
+     * Returns the number of bytes used by the table.
+     */
+    long size() {
+        return data.capacity();
+    }
+
+    /**
+     * Looks up the offset of the source block with the specified fingerprint.
+     * The caller must still verify the contents, as distinct blocks may share
+     * a fingerprint.
+     *
+     * @return the offset of the block, or -1 if there is none
+     */
+    long find(int hash) {
+        for (int slot = slot(hash);; slot = (slot + 1) & mask) {
+            int block = table.get((slot << 1) + 1);
+            if (block == 0) {
+                return -1;
+            } else if (table.get(slot << 1) == hash) {
+                return base + (long) (block - 1) * blockSize;
+            }
+        }
+    }
+
+    /**
+     * Computes the fingerprint of the block starting at the specified offset.
+     */
+    int hash(SegmentedBuffer in, long offset) {
+        int hash = 0;
+        for (int i = 0; i < blockSize; i++) {
+            hash = hash * PRIME + (in.get(offset + i) & 0xFF);
+        }
+        return hash;
+    }
+
+    /**
+     * Slides a fingerprint along by one byte, removing {@code out} from the
+     * front of the window and adding {@code in} to the back.
+     */
+    int roll(int hash, byte out, byte in) {
+        return (hash - (out & 0xFF) * power) * PRIME + (in & 0xFF);
+    }
+
+    private int slot(int hash) {
+        return ((hash * 0x9E3779B9) >>> shift) & mask;
+    }
+}
@@ -0,0 +1,202 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Pool of reusable direct buffers, so that repeated patching and patch
+ * creation allocate nothing on the heap once warmed up. Buffers are handed out
+ * in size classes, four to each power of two so at most a quarter is wasted,
+ * and must be given back with {@link #release(ByteBuffer)} once no longer
+ * used. Releasing a buffer twice, or one not acquired from the arena, fails
+ * rather than letting two users share it. <p> The total size of the buffers
+ * created by an arena, whether in use or pooled, never exceeds its cap.
+ * Pooled buffers are dropped to make room when needed, and if that is not
+ * enough the request fails rather than waiting, so the cap should allow for
+ * every buffer in use at once. An arena may be shared between threads.
+ */
+public final class BufferArena {
+
+    /**
+     * Smallest size class.
+     */
+    private static final int MIN_SIZE = 1 << 12;
+    /**
+     * Number of size classes, the smallest plus four per power of two above
+     * it.
+     */
+    private static final int CLASSES = 1 + (31 - 12) * 4;
+    /**
+     * Most bytes of buffers created and not yet dropped.
+     */
+    private final long cap;
+    /**
+     * Pooled buffers of each size class.
+     */
+    private final ArrayDeque<ByteBuffer>[] pools;
+    /**
+     * Buffers handed out and not yet released, by identity.
+     */
+    private final Set<ByteBuffer> inUse = Collections.newSetFromMap(new IdentityHashMap<ByteBuffer, Boolean>());
+    /**
+     * Bytes of buffers created and not yet dropped.
+     */
+    private long allocated;
+    /**
+     * Bytes of buffers pooled.
+     */
+    private long pooled;
+
+    /**
+     * Creates a new arena.
+     *
+     * @param cap most bytes of buffers which may exist at once
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferArena(long cap) {
+        if (cap < 0) {
+            throw new IllegalArgumentException("Cap must not be negative");
+        }
+        this.cap = cap;
+        this.pools = new ArrayDeque[CLASSES];
+        for (int i = 0; i < CLASSES; i++) {
+            pools[i] = new ArrayDeque<ByteBuffer>();
+        }
+    }
+
+    /**
+     * Takes a buffer of at least the specified size from the pool, creating
+     * one if needed. The buffer is big endian, with its position at 0 and its
+     * limit at the requested size.
+     *
+     * @throws IOException if the buffer would take the arena past its cap
+     */
+    public synchronized ByteBuffer acquire(int size) throws IOException {
+        if (size < 0) {
+            throw new IllegalArgumentException("Size must not be negative");
+        }
+        int index = index(size);
+        ByteBuffer buffer = pools[index].poll();
+        if (buffer != null) {
+            pooled -= buffer.capacity();
+        } else {
+            int capacity = size(index);
+            // make room by dropping pooled buffers, largest first
+            for (int i = CLASSES - 1; i >= 0 && allocated + capacity > cap; i--) {
+                while (!pools[i].isEmpty() && allocated + capacity > cap) {
+                    int dropped = pools[i].poll().capacity();
+                    allocated -= dropped;
+                    pooled -= dropped;
+                }
+            }
+            if (allocated + capacity > cap) {
+                throw new IOException("Buffer arena cannot fit another " + capacity + " bytes!");
+            }
+            buffer = ByteBuffer.allocateDirect(capacity);
+            allocated += capacity;
+        }
+        inUse.add(buffer);
+        buffer.clear();
+        buffer.limit(size);
+        return buffer.order(ByteOrder.BIG_ENDIAN);
+    }
+
+    /**
+     * Gives a buffer back to the pool. It must have been acquired from this
+     * arena, must not be used afterwards and must only be released once.
+     *
+     * @throws IllegalArgumentException if the buffer is not in use from this
+     * arena, having already been released or never acquired from it
+     */
+    public synchronized void release(ByteBuffer buffer) {
+        if (!inUse.remove(buffer)) {
+            throw new IllegalArgumentException("Buffer was not acquired from this arena or has already been released");
+        }
+        pools[index(buffer.capacity())].push(buffer);
+        pooled += buffer.capacity();
+    }
+
+    /**
+     * Drops every pooled buffer, leaving their memory to be reclaimed.
+     */
+    public synchronized void trim() {
+        for (ArrayDeque<ByteBuffer> pool : pools) {
+            pool.clear();
+        }
+        allocated -= pooled;
+        pooled = 0;
+    }
+
+    /**
+     * Returns the number of bytes of buffers which exist, whether in use or
+     * pooled.
+     */
+    public synchronized long getAllocated() {
+        return allocated;
+    }
+
+    /**
+     * Returns the number of bytes of buffers pooled.
+     */
+    public synchronized long getPooled() {
+        return pooled;
+    }
+
+    /**
+     * Finds the smallest size class holding the specified size.
+     */
+    private static int index(int size) {
+        if (size <= MIN_SIZE) {
+            return 0;
+        }
+        // size is above 2^power and at most 2^(power + 1), split in quarters
+        int power = 31 - Integer.numberOfLeadingZeros(size - 1);
+        int quarter = (int) (((size - 1L) >> (power - 2)) + 1) - 5;
+        return 1 + (power - 12) * 4 + quarter;
+    }
+
+    /**
+     * Returns the size of the buffers of a size class.
+     */
+    private static int size(int index) {
+        if (index == 0) {
+            return MIN_SIZE;
+        }
+        int power = 12 + (index - 1) / 4;
+        long size = (5L + (index - 1) % 4) << (power - 2);
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+}
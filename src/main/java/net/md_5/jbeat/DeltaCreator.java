@@ -0,0 +1,574 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import static net.md_5.jbeat.Shared.*;
+
+/**
+ * Creates delta compressed patches by searching a suffix array of the source
+ * and target files for the longest match at every position of the target.
+ * Makes use of all four beat commands, so inserted, removed and relocated
+ * blocks of data are encoded as copies rather than literal bytes. <p> Memory
+ * usage is roughly 12 bytes per byte of source and target, construction of
+ * the suffix array is linear and each target position is resolved by a short
+ * walk of its neighbours in the array. <p> By default the longest match at
+ * each position is taken greedily. With a higher effort level an optimal
+ * parse is made instead: several candidate matches are collected for every
+ * position, including those carrying on from where the last copies left off,
+ * and the cheapest path through a window of the target is found by dynamic
+ * programming, pricing each command in the exact number of bytes it will be
+ * encoded as.
+ */
+public final class DeltaCreator extends PatchCreator {
+
+    /**
+     * Minimum length of a copy, shorter matches are cheaper as literals.
+     */
+    private static final int MIN_MATCH = 4;
+    /**
+     * Maximum number of suffix array entries examined either side of a target
+     * suffix when looking for a suffix we are allowed to copy from.
+     */
+    private static final int SEARCH_DEPTH = 128;
+    /**
+     * Number of target positions parsed optimally at once.
+     */
+    private static final int WINDOW_SIZE = 1 << 12;
+    /**
+     * Highest effort level.
+     */
+    public static final int MAX_EFFORT = 9;
+    /**
+     * Suffix array of the source, a separator and the target.
+     */
+    private int[] suffixes;
+    /**
+     * Position within {@link #suffixes} of each target suffix.
+     */
+    private int[] ranks;
+    /**
+     * Effort spent finding the smallest patch, 0 for greedy parsing.
+     */
+    private int effort;
+    /**
+     * The source and target as single buffers, which they fit in to be
+     * indexed together.
+     */
+    private ByteBuffer sourceData, targetData;
+
+    public DeltaCreator(File original, File modified, File output) throws FileNotFoundException {
+        super(original, modified, output);
+    }
+
+    public DeltaCreator(File original, File modified, File output, String header) throws FileNotFoundException {
+        super(original, modified, output, header);
+    }
+
+    public DeltaCreator(ByteBuffer original, ByteBuffer modified, WritableByteChannel output) {
+        this(original, modified, output, null);
+    }
+
+    /**
+     * Creates a new delta patch creator instance over data already in memory,
+     * from the position to the limit of each buffer. The patch is written
+     * straight to the channel, which is left open.
+     *
+     * @param original data, which the patch applicator will have access to
+     * @param modified data which has been changed from the original
+     * @param output channel to which the patch will be written
+     * @param header to be used as beat metadata
+     */
+    public DeltaCreator(ByteBuffer original, ByteBuffer modified, WritableByteChannel output, String header) {
+        super(original, modified, output, header);
+    }
+
+    public DeltaCreator(byte[] original, byte[] modified, WritableByteChannel output) {
+        this(ByteBuffer.wrap(original), ByteBuffer.wrap(modified), output, null);
+    }
+
+    /**
+     * Creates a new delta patch creator instance over the remaining data of
+     * two channels, which are read to their end, or mapped if file channels.
+     *
+     * @throws IOException when either channel cannot be read
+     */
+    public DeltaCreator(ReadableByteChannel original, ReadableByteChannel modified, WritableByteChannel output) throws IOException {
+        this(readFully(original), readFully(modified), output, null);
+    }
+
+    /**
+     * Sets the effort spent finding the smallest patch. At 0 the longest match
+     * is taken greedily. From 1 up to {@link #MAX_EFFORT} an optimal parse is
+     * made, each level considering more candidate matches per position, and
+     * longer matches before one is simply taken, at the cost of more time.
+     *
+     * @param effort the effort level, 0 by default
+     */
+    public void setEffort(int effort) {
+        if (effort < 0 || effort > MAX_EFFORT) {
+            throw new IllegalArgumentException("Effort must be between 0 and " + MAX_EFFORT);
+        }
+        this.effort = effort;
+    }
+
+    @Override
+    protected void prepare() throws IOException {
+        if (sourceLength + targetLength + 2 > Integer.MAX_VALUE) {
+            throw new IOException("Source and target are too large to be indexed together!");
+        }
+        sourceData = source.buffer();
+        targetData = target.buffer();
+        index();
+    }
+
+    @Override
+    protected long indexSize() {
+        // the text the array was built from is held alongside it while ranking
+        return 4L * (2 * suffixes.length + ranks.length);
+    }
+
+    @Override
+    protected void doPatch(OpSink ops, long start, long end) throws IOException {
+        diff(ops, (int) start, (int) end);
+    }
+
+    private void diff(OpSink ops, int start, int end) throws IOException {
+        if (effort > 0) {
+            new Parse(start, end).run(ops);
+            return;
+        }
+        Match match = new Match();
+        // the relative offsets as far as this segment knows, used to cost copies
+        long sourceRelativeOffset = 0, targetRelativeOffset = 0;
+        int outputOffset = start;
+        while (outputOffset < end) {
+            int sourceRead = 0;
+            while (outputOffset + sourceRead < Math.min(sourceLength, end)
+                    && sourceData.get(outputOffset + sourceRead) == targetData.get(outputOffset + sourceRead)) {
+                sourceRead++;
+            }
+            search(outputOffset, end, match);
+
+            if (sourceRead >= MIN_MATCH && sourceRead >= match.length) {
+                ops.sourceRead(sourceRead);
+                outputOffset += sourceRead;
+            } else if (match.length >= MIN_MATCH && !match.target && match.length > copyCost(match.offset - sourceRelativeOffset, match.length)) {
+                ops.sourceCopy(match.offset, match.length);
+                sourceRelativeOffset = match.offset + match.length;
+                outputOffset += match.length;
+            } else if (match.length >= MIN_MATCH && match.target && match.length > copyCost(match.offset - targetRelativeOffset, match.length)) {
+                ops.targetCopy(match.offset, match.length);
+                targetRelativeOffset = match.offset + match.length;
+                outputOffset += match.length;
+            } else {
+                ops.targetRead(1);
+                outputOffset++;
+            }
+        }
+    }
+
+    /**
+     * Builds the suffix array over the source, a unique separator and the
+     * target. Bytes are shifted up by one so that 0 may be used as the
+     * terminating sentinel and 257 as the separator, which stops matches from
+     * running off the end of the source.
+     */
+    private void index() {
+        int sourceSize = (int) sourceLength, targetSize = (int) targetLength;
+        int[] text = new int[sourceSize + targetSize + 2];
+        for (int i = 0; i < sourceSize; i++) {
+            text[i] = (sourceData.get(i) & 0xFF) + 1;
+        }
+        text[sourceSize] = 257;
+        for (int i = 0; i < targetSize; i++) {
+            text[sourceSize + 1 + i] = (targetData.get(i) & 0xFF) + 1;
+        }
+        suffixes = SuffixArray.build(text, 258);
+        ranks = new int[targetSize];
+        for (int i = 0; i < suffixes.length; i++) {
+            int targetOffset = suffixes[i] - sourceSize - 1;
+            if (targetOffset >= 0 && targetOffset < targetSize) {
+                ranks[targetOffset] = i;
+            }
+        }
+    }
+
+    /**
+     * Finds the longest match for the target data at the specified offset
+     * which is either in the source, or in the target before the offset, and
+     * does not run past {@code end}. Since suffixes sharing longer prefixes
+     * sort closer together, only the nearest usable suffix either side of the
+     * target suffix needs comparing.
+     */
+    private void search(int offset, int end, Match match) {
+        match.length = 0;
+        int rank = ranks[offset];
+        for (int i = rank - 1; i >= 0 && i >= rank - SEARCH_DEPTH; i--) {
+            if (candidate(suffixes[i], offset, end, match)) {
+                break;
+            }
+        }
+        for (int i = rank + 1; i < suffixes.length && i <= rank + SEARCH_DEPTH; i++) {
+            if (candidate(suffixes[i], offset, end, match)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Compares a suffix against the target at the specified offset, recording
+     * it if it is the best match so far. Returns false if the suffix may not
+     * be copied from.
+     */
+    private boolean candidate(int suffix, int offset, int end, Match match) {
+        int length;
+        boolean inTarget;
+        if (suffix < sourceLength) {
+            int limit = (int) Math.min(sourceLength - suffix, end - offset);
+            length = matchLength(sourceData, suffix, targetData, offset, limit);
+            inTarget = false;
+        } else {
+            suffix -= sourceLength + 1;
+            if (suffix < 0 || suffix >= offset) {
+                return false;
+            }
+            length = matchLength(targetData, suffix, targetData, offset, end - offset);
+            inTarget = true;
+        }
+        if (length > match.length) {
+            match.offset = suffix;
+            match.length = length;
+            match.target = inTarget;
+        }
+        return true;
+    }
+
+    /**
+     * Collects up to {@code count} candidate matches either side of the
+     * target suffix at the specified offset which may be copied from.
+     */
+    private void search(int offset, int end, int count, Candidates candidates) {
+        candidates.size = 0;
+        int rank = ranks[offset];
+        int found = 0;
+        for (int i = rank - 1; i >= 0 && i >= rank - SEARCH_DEPTH && found < count; i--) {
+            if (candidates.add(suffixes[i], offset, end)) {
+                found++;
+            }
+        }
+        found = 0;
+        for (int i = rank + 1; i < suffixes.length && i <= rank + SEARCH_DEPTH && found < count; i++) {
+            if (candidates.add(suffixes[i], offset, end)) {
+                found++;
+            }
+        }
+    }
+
+    /**
+     * Number of bytes needed to encode a copy command.
+     */
+    private static int copyCost(long relativeOffset, int length) {
+        return encodedLength((long) (length - 1) << 2) + encodedLength((Math.abs(relativeOffset) << 1) | 1);
+    }
+
+    /**
+     * Converts a signed offset to the form used by the copy commands.
+     */
+    private static long relative(long offset) {
+        return (Math.abs(offset) << 1) | (offset < 0 ? 1 : 0);
+    }
+
+    /**
+     * Number of bytes a number occupies in its variable length form.
+     */
+    private static int encodedLength(long data) {
+        int length = 1;
+        while ((data >>= 7) != 0) {
+            data--;
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * Candidate matches for a single target offset.
+     */
+    private final class Candidates {
+
+        private final int[] offsets, lengths;
+        private final boolean[] inTarget;
+        private int size;
+
+        Candidates(int capacity) {
+            offsets = new int[capacity];
+            lengths = new int[capacity];
+            inTarget = new boolean[capacity];
+        }
+
+        /**
+         * Adds a suffix as a candidate, returning false if it may not be
+         * copied from. Copies from the source at the target offset are left
+         * out, being source reads.
+         */
+        boolean add(int suffix, int offset, int end) {
+            int length;
+            boolean target;
+            if (suffix < sourceLength) {
+                if (suffix == offset) {
+                    return true;
+                }
+                length = matchLength(sourceData, suffix, DeltaCreator.this.targetData, offset, (int) Math.min(sourceLength - suffix, end - offset));
+                target = false;
+            } else {
+                suffix -= sourceLength + 1;
+                if (suffix < 0 || suffix >= offset) {
+                    return false;
+                }
+                length = matchLength(DeltaCreator.this.targetData, suffix, DeltaCreator.this.targetData, offset, end - offset);
+                target = true;
+            }
+            if (length > 0) {
+                offsets[size] = suffix;
+                lengths[size] = length;
+                inTarget[size] = target;
+                size++;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Optimal parse of a segment of the target. Each node of a window stands
+     * for a target offset, and records the cheapest known way to encode the
+     * window up to it, along with the state the patch writer would then be
+     * in: the relative offsets, and the command still open for merging, whose
+     * encoded length grows as it is extended.
+     */
+    private final class Parse {
+
+        private final int start, end;
+        /**
+         * Matches longer than this are taken without considering the
+         * alternatives.
+         */
+        private final int niceLength;
+        private final Candidates candidates;
+        /**
+         * Bytes needed to encode the window up to each node.
+         */
+        private final int[] price = new int[WINDOW_SIZE + 1];
+        /**
+         * The node before each node, and the command which leads from it.
+         */
+        private final int[] from = new int[WINDOW_SIZE + 1];
+        private final byte[] mode = new byte[WINDOW_SIZE + 1];
+        private final long[] offset = new long[WINDOW_SIZE + 1];
+        /**
+         * The state of the writer at each node.
+         */
+        private final long[] sourceRelative = new long[WINDOW_SIZE + 1], targetRelative = new long[WINDOW_SIZE + 1];
+        private final byte[] lastMode = new byte[WINDOW_SIZE + 1];
+        private final long[] lastLength = new long[WINDOW_SIZE + 1];
+
+        Parse(int start, int end) {
+            this.start = start;
+            this.end = end;
+            this.niceLength = 32 * effort;
+            this.candidates = new Candidates(2 * effort);
+        }
+
+        void run(OpSink ops) throws IOException {
+            // the relative offsets as far as this segment knows
+            long sourceRel = 0, targetRel = 0, openLength = 0;
+            byte openMode = -1;
+            // end of the run of bytes equal in source and target at the same offset
+            int readEnd = start;
+            int position = start;
+            while (position < end) {
+                int limit = Math.min(WINDOW_SIZE, end - position);
+                Arrays.fill(price, 0, limit + 1, Integer.MAX_VALUE);
+                price[0] = 0;
+                sourceRelative[0] = sourceRel;
+                targetRelative[0] = targetRel;
+                lastMode[0] = openMode;
+                lastLength[0] = openLength;
+                for (int i = 0; i < limit; i++) {
+                    int at = position + i;
+                    int room = limit - i;
+                    // a single literal byte
+                    relax(i, (byte) TARGET_READ, 0, 1);
+                    // bytes equal in source and target
+                    if (at >= readEnd) {
+                        readEnd = at;
+                        if (at < sourceLength && sourceData.get(at) == targetData.get(at)) {
+                            readEnd += 1 + matchLength(sourceData, at + 1, targetData, at + 1, (int) Math.min(sourceLength, end) - at - 1);
+                        }
+                    }
+                    int longest = 0;
+                    if (readEnd > at) {
+                        longest = Math.max(longest, lengths(i, (byte) SOURCE_READ, 0, 1, readEnd - at, room));
+                    }
+                    // copies carrying on from where the last copies left off
+                    long rel = sourceRelative[i];
+                    if (rel < sourceLength && rel != at) {
+                        int length = matchLength(sourceData, (int) rel, targetData, at, (int) Math.min(sourceLength - rel, end - at));
+                        longest = Math.max(longest, lengths(i, (byte) SOURCE_COPY, rel, 1, length, room));
+                    }
+                    rel = targetRelative[i];
+                    if (rel < at) {
+                        int length = matchLength(targetData, (int) rel, targetData, at, end - at);
+                        longest = Math.max(longest, lengths(i, (byte) TARGET_COPY, rel, 1, length, room));
+                    }
+                    // the nearest matches in the suffix array, short copies from
+                    // elsewhere save little and throw the relative offsets off
+                    if (longest < niceLength) {
+                        search(at, end, effort, candidates);
+                        for (int c = 0; c < candidates.size; c++) {
+                            byte copy = (byte) (candidates.inTarget[c] ? TARGET_COPY : SOURCE_COPY);
+                            longest = Math.max(longest, lengths(i, copy, candidates.offsets[c], MIN_MATCH, candidates.lengths[c], room));
+                        }
+                    }
+                    if (longest >= niceLength) {
+                        // a long match ends the window rather than be weighed up
+                        limit = i + Math.min(longest, room);
+                        break;
+                    }
+                }
+
+                // walk back along the cheapest path, then give its commands in order
+                int count = 0;
+                for (int node = limit; node != 0; node = from[node]) {
+                    count++;
+                }
+                int[] path = new int[count];
+                for (int node = limit; node != 0; node = from[node]) {
+                    path[--count] = node;
+                }
+                int previous = 0;
+                for (int node : path) {
+                    long length = node - previous;
+                    switch (mode[node]) {
+                        case (byte) SOURCE_READ:
+                            ops.sourceRead(length);
+                            break;
+                        case (byte) TARGET_READ:
+                            ops.targetRead(length);
+                            break;
+                        case (byte) SOURCE_COPY:
+                            ops.sourceCopy(offset[node], length);
+                            break;
+                        default:
+                            ops.targetCopy(offset[node], length);
+                    }
+                    previous = node;
+                }
+                sourceRel = sourceRelative[limit];
+                targetRel = targetRelative[limit];
+                openMode = lastMode[limit];
+                openLength = lastLength[limit];
+                position += limit;
+            }
+        }
+
+        /**
+         * Offers a command of every length from {@code shortest} up to
+         * {@code length} from a node, or only the longest once it is at least
+         * the nice length. Returns the length of the match.
+         */
+        private int lengths(int node, byte command, long copyOffset, int shortest, int length, int room) {
+            int longest = Math.min(length, room);
+            if (length >= niceLength) {
+                relax(node, command, copyOffset, longest);
+            } else {
+                for (int l = shortest; l <= longest; l++) {
+                    relax(node, command, copyOffset, l);
+                }
+            }
+            return length;
+        }
+
+        /**
+         * Prices a command leading from a node, recording it at the node it
+         * leads to if it is the cheapest way there so far.
+         */
+        private void relax(int node, byte command, long copyOffset, int length) {
+            int to = node + length;
+            // the writer merges a command into the last if it carries on from it
+            long merged = 0;
+            if (lastMode[node] == command) {
+                if (command == SOURCE_READ || command == TARGET_READ
+                        || (command == SOURCE_COPY && copyOffset == sourceRelative[node])
+                        || (command == TARGET_COPY && copyOffset == targetRelative[node])) {
+                    merged = lastLength[node];
+                }
+            }
+            int cost = encodedLength(((merged + length - 1) << 2) | command);
+            if (merged != 0) {
+                cost -= encodedLength(((merged - 1) << 2) | command);
+            } else if (command == SOURCE_COPY) {
+                cost += encodedLength(relative(copyOffset - sourceRelative[node]));
+            } else if (command == TARGET_COPY) {
+                cost += encodedLength(relative(copyOffset - targetRelative[node]));
+            }
+            if (command == TARGET_READ) {
+                cost += length;
+            }
+            cost += price[node];
+            if (cost < price[to]) {
+                price[to] = cost;
+                from[to] = node;
+                mode[to] = command;
+                offset[to] = copyOffset;
+                sourceRelative[to] = (command == SOURCE_COPY) ? copyOffset + length : sourceRelative[node];
+                targetRelative[to] = (command == TARGET_COPY) ? copyOffset + length : targetRelative[node];
+                lastMode[to] = command;
+                lastLength[to] = merged + length;
+            }
+        }
+    }
+
+    /**
+     * The best match found so far for a target offset.
+     */
+    private static final class Match {
+
+        private int offset, length;
+        /**
+         * Whether the match lies within the target rather than the source.
+         */
+        private boolean target;
+    }
+}
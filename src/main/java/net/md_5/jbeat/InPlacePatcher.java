@@ -0,0 +1,472 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Applies a patch to a file in place, rewriting the source into the target
+ * without a second copy of either on disk or in memory. <p> Commands are
+ * executed in target order, so target copies always find the target they
+ * refer to, and source reads, which leave bytes where they are, cost nothing.
+ * Only source copies may read bytes which an earlier command has already
+ * overwritten. A first pass over the patch records the target ranges written
+ * so far as a sorted list of intervals, and intersects the source range of
+ * every copy with it; only those conflicting source ranges are saved before
+ * the file is touched, in memory or, past a limit, in a temporary file. A
+ * copy which overlaps its own output is moved in the direction which reads
+ * each byte before it is overwritten. <p> The source checksum is checked
+ * before anything is written, but should patching fail part way, for instance
+ * when the target checksum does not match, the file is left neither source
+ * nor target.
+ */
+public final class InPlacePatcher {
+
+    /**
+     * Size of the chunks in which data is moved within the file.
+     */
+    private static final int CHUNK_SIZE = PatcherIO.BUFFER_SIZE;
+    /**
+     * The beat format patch file.
+     */
+    private final File patchFile;
+    /**
+     * The file holding the source, which becomes the target.
+     */
+    private final File file;
+    /**
+     * Most bytes of conflicting source ranges saved in memory rather than in
+     * a temporary file.
+     */
+    private long memoryLimit = 64 << 20;
+    /**
+     * Number of bytes saved by the last patch.
+     */
+    private long savedBytes;
+
+    /**
+     * Create a new in place patcher instance. In order to complete the patch
+     * process {@link #patch()} method must be called.
+     *
+     * @param patchFile the beat format patch file
+     * @param file the original file from which the patch was created, which
+     * will be rewritten into the patched file
+     */
+    public InPlacePatcher(File patchFile, File file) {
+        this.patchFile = patchFile;
+        this.file = file;
+    }
+
+    /**
+     * Sets the most bytes of conflicting source ranges kept in memory. Larger
+     * conflicts are saved to a temporary file beside the patched file.
+     *
+     * @param memoryLimit the limit in bytes, 64MB by default
+     */
+    public void setMemoryLimit(long memoryLimit) {
+        this.memoryLimit = memoryLimit;
+    }
+
+    /**
+     * Returns the number of bytes of the source which had to be saved before
+     * the last patch could be applied in place.
+     */
+    public long getSavedBytes() {
+        return savedBytes;
+    }
+
+    /**
+     * Applies the patch, checking the patch and source checksums before
+     * changing the file, and the target checksum once done.
+     */
+    public void patch() throws IOException {
+        RandomAccessFile patchAccess = new RandomAccessFile(patchFile, "r");
+        RandomAccessFile fileAccess = new RandomAccessFile(file, "rw");
+        File spill = null;
+        RandomAccessFile spillAccess = null;
+        try {
+            FileChannel patchChannel = patchAccess.getChannel();
+            FileChannel channel = fileAccess.getChannel();
+
+            // find the source ranges which are overwritten before being copied
+            PatchReader reader = new PatchReader(patchChannel);
+            reader.readHeader();
+            final long sourceSize = reader.getSourceSize();
+            final long targetSize = reader.getTargetSize();
+            if (channel.size() < sourceSize) {
+                throw new IOException("Source file is smaller than the patch expects!");
+            }
+            Intervals written = new Intervals();
+            Intervals conflicts = new Intervals();
+            while (reader.next()) {
+                long length = reader.getLength();
+                long offset = reader.getOffset();
+                long outputOffset = reader.getOutputOffset();
+                int mode = reader.getMode();
+                if (mode == PatchReader.SOURCE_READ || mode == PatchReader.SOURCE_COPY) {
+                    if (offset < 0 || offset + length > sourceSize) {
+                        throw new IOException("Patch command refers to data outside of its file!");
+                    }
+                } else if (mode == PatchReader.TARGET_COPY && (offset < 0 || offset >= outputOffset)) {
+                    throw new IOException("Target copy does not refer to already patched data!");
+                }
+                if (mode == PatchReader.SOURCE_COPY) {
+                    // only bytes before the output can have been written yet
+                    written.intersect(offset, Math.min(offset + length, outputOffset), conflicts);
+                }
+                // source reads, and copies from where they write, change nothing
+                if (mode != PatchReader.SOURCE_READ && !(mode == PatchReader.SOURCE_COPY && offset == outputOffset)) {
+                    written.append(outputOffset, outputOffset + length);
+                }
+            }
+            reader.readFooter();
+            if (reader.getComputedPatchChecksum() != reader.getPatchChecksum()) {
+                throw new IOException("Patch checksum does not match!");
+            }
+            if (checksum(channel, sourceSize) != reader.getSourceChecksum()) {
+                throw new IOException("Source checksum does not match!");
+            }
+            final long targetChecksum = reader.getTargetChecksum();
+
+            // save the conflicting ranges before anything is overwritten
+            conflicts.merge();
+            savedBytes = conflicts.total();
+            ByteBuffer saved = null;
+            FileChannel spillChannel = null;
+            if (savedBytes <= memoryLimit) {
+                saved = ByteBuffer.allocate((int) savedBytes);
+                for (int i = 0; i < conflicts.size; i++) {
+                    ByteBuffer range = saved.duplicate();
+                    range.limit((int) (conflicts.saved[i] + conflicts.ends[i] - conflicts.starts[i]));
+                    range.position((int) conflicts.saved[i]);
+                    readFully(channel, range, conflicts.starts[i]);
+                }
+            } else {
+                spill = File.createTempFile("jbeat", ".saved", file.getAbsoluteFile().getParentFile());
+                spillAccess = new RandomAccessFile(spill, "rw");
+                spillChannel = spillAccess.getChannel();
+                for (int i = 0; i < conflicts.size; i++) {
+                    long from = conflicts.starts[i], to = conflicts.saved[i];
+                    for (long remaining = conflicts.ends[i] - from; remaining != 0;) {
+                        long count = channel.transferTo(from, remaining, spillChannel.position(to));
+                        from += count;
+                        to += count;
+                        remaining -= count;
+                    }
+                }
+            }
+
+            // do the actual patching
+            patchChannel.position(0);
+            reader = new PatchReader(patchChannel);
+            reader.readHeader();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK_SIZE);
+            while (reader.next()) {
+                long length = reader.getLength();
+                long offset = reader.getOffset();
+                long outputOffset = reader.getOutputOffset();
+                int mode = reader.getMode();
+                // branch per mode
+                if (mode == PatchReader.TARGET_READ) {
+                    while (length != 0) {
+                        buffer.clear();
+                        buffer.limit((int) Math.min(length, CHUNK_SIZE));
+                        reader.readLiteral(buffer);
+                        buffer.flip();
+                        writeFully(channel, buffer, outputOffset);
+                        outputOffset += buffer.limit();
+                        length -= buffer.limit();
+                    }
+                } else if (mode == PatchReader.SOURCE_COPY && offset != outputOffset) {
+                    // work backwards when the output lies ahead within the copy
+                    boolean backwards = offset < outputOffset && offset + length > outputOffset;
+                    for (long done = 0; done < length;) {
+                        int count = (int) Math.min(length - done, CHUNK_SIZE);
+                        long chunk = backwards ? length - done - count : done;
+                        buffer.clear();
+                        buffer.limit(count);
+                        readSource(channel, conflicts, saved, spillChannel, buffer, offset + chunk);
+                        buffer.flip();
+                        writeFully(channel, buffer, outputOffset + chunk);
+                        done += count;
+                    }
+                } else if (mode == PatchReader.TARGET_COPY) {
+                    targetCopy(channel, buffer, offset, outputOffset, length);
+                }
+            }
+
+            // the target may be shorter than the source
+            channel.truncate(targetSize);
+            if (checksum(channel, targetSize) != targetChecksum) {
+                throw new IOException("Target checksum does not match!");
+            }
+        } finally {
+            if (spillAccess != null) {
+                spillAccess.close();
+            }
+            if (spill != null) {
+                spill.delete();
+            }
+            // close the files
+            patchAccess.close();
+            fileAccess.close();
+        }
+    }
+
+    /**
+     * Copies {@code length} bytes from earlier in the target to the output
+     * offset. When the copy overlaps the bytes it produces the target repeats
+     * every {@code distance} bytes, so a buffer is filled with whole periods
+     * and written over and over.
+     */
+    private static void targetCopy(FileChannel channel, ByteBuffer buffer, long offset, long outputOffset, long length) throws IOException {
+        long distance = outputOffset - offset;
+        if (length > distance && distance < CHUNK_SIZE) {
+            int period = (int) distance;
+            buffer.clear();
+            buffer.limit(period);
+            readFully(channel, buffer, offset);
+            int filled = period;
+            int size = (int) Math.min(length, CHUNK_SIZE - CHUNK_SIZE % period);
+            while (filled < size) {
+                int count = Math.min(filled, size - filled);
+                ByteBuffer block = buffer.duplicate();
+                block.position(0);
+                block.limit(count);
+                buffer.limit(filled + count);
+                buffer.position(filled);
+                buffer.put(block);
+                filled += count;
+            }
+            while (length != 0) {
+                buffer.position(0);
+                buffer.limit((int) Math.min(length, size));
+                writeFully(channel, buffer, outputOffset);
+                outputOffset += buffer.limit();
+                length -= buffer.limit();
+            }
+            return;
+        }
+        // each chunk only reads bytes already written
+        while (length != 0) {
+            buffer.clear();
+            buffer.limit((int) Math.min(Math.min(length, CHUNK_SIZE), outputOffset - offset));
+            readFully(channel, buffer, offset);
+            buffer.flip();
+            writeFully(channel, buffer, outputOffset);
+            offset += buffer.limit();
+            outputOffset += buffer.limit();
+            length -= buffer.limit();
+        }
+    }
+
+    /**
+     * Fills the buffer with the source starting at the specified offset,
+     * taking saved bytes where the file has already been overwritten.
+     */
+    private static void readSource(FileChannel channel, Intervals conflicts, ByteBuffer saved, FileChannel spill, ByteBuffer into, long offset) throws IOException {
+        int i = conflicts.find(offset);
+        while (into.hasRemaining()) {
+            ByteBuffer part = into.duplicate();
+            if (i < conflicts.size && conflicts.starts[i] <= offset) {
+                long from = conflicts.saved[i] + offset - conflicts.starts[i];
+                part.limit(part.position() + (int) Math.min(part.remaining(), conflicts.ends[i] - offset));
+                if (saved != null) {
+                    ByteBuffer range = saved.duplicate();
+                    range.position((int) from);
+                    range.limit((int) from + part.remaining());
+                    part.put(range);
+                } else {
+                    readFully(spill, part, from);
+                }
+                i++;
+            } else {
+                if (i < conflicts.size) {
+                    part.limit(part.position() + (int) Math.min(part.remaining(), conflicts.starts[i] - offset));
+                }
+                readFully(channel, part, offset);
+            }
+            offset += part.position() - into.position();
+            into.position(part.position());
+        }
+    }
+
+    /**
+     * Computes the checksum of the first {@code length} bytes of a file.
+     */
+    private static long checksum(FileChannel channel, long length) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK_SIZE);
+        for (long position = 0; position < length;) {
+            buffer.clear();
+            buffer.limit((int) Math.min(CHUNK_SIZE, length - position));
+            readFully(channel, buffer, position);
+            buffer.flip();
+            crc.update(buffer);
+            position += buffer.limit();
+        }
+        return crc.getValue();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer into, long position) throws IOException {
+        while (into.hasRemaining()) {
+            int read = channel.read(into, position);
+            if (read == -1) {
+                throw new EOFException("Unexpected end of file!");
+            }
+            position += read;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer from, long position) throws IOException {
+        while (from.hasRemaining()) {
+            position += channel.write(from, position);
+        }
+    }
+
+    /**
+     * Ranges of a file, as sorted arrays of starts and ends.
+     */
+    private static final class Intervals {
+
+        private long[] starts = new long[64], ends = new long[64];
+        /**
+         * Offset at which each range is saved, once merged.
+         */
+        private long[] saved;
+        private int size;
+
+        /**
+         * Adds a range which starts at or after the end of the last.
+         */
+        void append(long start, long end) {
+            if (size != 0 && ends[size - 1] == start) {
+                ends[size - 1] = end;
+            } else {
+                add(start, end);
+            }
+        }
+
+        /**
+         * Adds a range in any order, to be sorted by {@link #merge()}.
+         */
+        void add(long start, long end) {
+            if (size == starts.length) {
+                starts = Arrays.copyOf(starts, size * 2);
+                ends = Arrays.copyOf(ends, size * 2);
+            }
+            starts[size] = start;
+            ends[size] = end;
+            size++;
+        }
+
+        /**
+         * Returns the index of the first range which ends after the offset.
+         */
+        int find(long offset) {
+            int low = 0, high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (ends[mid] <= offset) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * Adds the parts of the specified range which these sorted ranges
+         * cover to another set.
+         */
+        void intersect(long start, long end, Intervals into) {
+            for (int i = find(start); i < size && starts[i] < end; i++) {
+                into.add(Math.max(start, starts[i]), Math.min(end, ends[i]));
+            }
+        }
+
+        /**
+         * Sorts and merges overlapping ranges, and lays them out one after
+         * another for saving. Starts and ends may be sorted separately, as
+         * the union of the ranges is the same.
+         */
+        void merge() {
+            Arrays.sort(starts, 0, size);
+            Arrays.sort(ends, 0, size);
+            int merged = 0;
+            for (int i = 0; i < size; i++) {
+                if (merged != 0 && starts[i] <= ends[merged - 1]) {
+                    ends[merged - 1] = Math.max(ends[merged - 1], ends[i]);
+                } else {
+                    starts[merged] = starts[i];
+                    ends[merged] = ends[i];
+                    merged++;
+                }
+            }
+            size = merged;
+            saved = new long[size];
+            for (int i = 1; i < size; i++) {
+                saved[i] = saved[i - 1] + ends[i - 1] - starts[i - 1];
+            }
+        }
+
+        /**
+         * Returns the number of bytes covered by the ranges.
+         */
+        long total() {
+            return (size == 0) ? 0 : saved[size - 1] + ends[size - 1] - starts[size - 1];
+        }
+    }
+
+    public static void main(final String[] arguments) throws IOException {
+        if (arguments == null || arguments.length != 2) {//Check for valid arguments
+            System.out.println("You must have valid arguments!");
+            System.out.println("The first argument, should be where the patch file is located.");
+            System.out.println("The second argument, should be where the source file is located, which will be patched in place.");
+            return;
+        }
+        File patchFile = new File(arguments[0]), file = new File(arguments[1]);
+        if (!patchFile.exists()) {//Check if the patch file exists, if it doesn't, throw a FileNotFoundException.
+            throw new FileNotFoundException("The patch file does not exist at location \"" + arguments[0] + "\"!");
+        }
+        if (!file.exists()) {//Check if the source file exists, if it doesn't, throw a FileNotFoundException.
+            throw new FileNotFoundException("The source file does not exist at location \"" + arguments[1] + "\"!");
+        }
+        new InPlacePatcher(patchFile, file).patch();
+    }
+}
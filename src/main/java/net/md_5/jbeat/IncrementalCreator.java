@@ -0,0 +1,432 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import static net.md_5.jbeat.Shared.*;
+
+/**
+ * Updates a patch after a few changes to its target, rather than
+ * differencing the whole target again. The new target is matched against an
+ * index of the blocks of the previous target, as {@link BlockCreator} matches
+ * against the source, to find the runs of bytes the targets share, each with
+ * its own shift. The commands of the previous patch are reused for every run,
+ * clipped at its edges, and only the changed ranges between the runs are
+ * differenced against an index of the source blocks. <p> The bytes the
+ * targets share at either end are found first, eight at a time, so only the
+ * part of the previous target between the first and last change is indexed,
+ * and only every so many blocks of it, so a shared run shorter than about a
+ * kilobyte is differenced against the source instead.
+ * The previous target must be the one the previous patch produces, its
+ * checksum is taken from the patch and only its length is checked. The source
+ * is checksummed and checked against the previous patch before its commands
+ * are reused. Repeated updates against the same source should share a
+ * {@link SourceIndexCache}, so the source index is not built each time.
+ */
+public final class IncrementalCreator extends PatchCreator {
+
+    /**
+     * Number of blocks of the previous target per indexed block, as the runs
+     * the targets share are long and only a few need finding.
+     */
+    private static final int PREVIOUS_STRIDE = 16;
+
+    /**
+     * The target from which the previous patch was created.
+     */
+    private final RandomAccessFile previousTargetFile;
+    /**
+     * The previous patch, from the source to the previous target.
+     */
+    private final File previousPatch;
+    /**
+     * Size of the indexed source and previous target blocks.
+     */
+    private final int blockSize;
+    /**
+     * Cache of source indexes, or null to always build the index.
+     */
+    private SourceIndexCache indexCache;
+    /**
+     * Index of the source blocks, or null when nothing needs differencing.
+     */
+    private BlockIndex index;
+    /**
+     * Mode of each command of the previous patch in the low two bits, and its
+     * length above them.
+     */
+    private long[] commands = new long[64];
+    /**
+     * Absolute offset of the data each command of the previous patch copies,
+     * the output offset for reads.
+     */
+    private long[] offsets = new long[64];
+    /**
+     * Output offset at which each command of the previous patch starts.
+     */
+    private long[] outputs = new long[64];
+    /**
+     * Number of commands of the previous patch.
+     */
+    private int size;
+    /**
+     * Length of the previous target and checksum of the source, from the
+     * previous patch.
+     */
+    private long previousLength, previousSourceChecksum;
+    /**
+     * Target offset, previous target offset and length of each run of bytes
+     * the targets share, in target order.
+     */
+    private long[] runTargets = new long[16], runPrevious = new long[16], runLengths = new long[16];
+    /**
+     * Number of runs the targets share.
+     */
+    private int runs;
+    /**
+     * Numbers of the runs in order of their previous target offset, and
+     * those offsets, to find the run holding the data of a target copy.
+     */
+    private int[] byPrevious;
+    private long[] previousStarts;
+
+    public IncrementalCreator(File original, File previousTarget, File previousPatch, File modified, File output) throws FileNotFoundException {
+        this(original, previousTarget, previousPatch, modified, output, null);
+    }
+
+    /**
+     * Creates a new incremental patch creator instance.
+     *
+     * @param original file, which both patches apply to
+     * @param previousTarget file which the previous patch produces
+     * @param previousPatch the patch from the original to the previous target
+     * @param modified file which has been changed from the previous target
+     * @param output location to which the patch will be output
+     * @param header to be used as beat metadata
+     * @throws FileNotFoundException when one of the files cannot be opened for
+     * read or write access
+     */
+    public IncrementalCreator(File original, File previousTarget, File previousPatch, File modified, File output, String header) throws FileNotFoundException {
+        super(original, modified, output, header);
+        this.previousTargetFile = new RandomAccessFile(previousTarget, "r");
+        this.previousPatch = previousPatch;
+        this.blockSize = BlockCreator.DEFAULT_BLOCK_SIZE;
+    }
+
+    /**
+     * Sets a cache from which the index of the source is taken, so that it is
+     * only built the first time a patch is created against that source.
+     *
+     * @param indexCache the cache to use, or null to always build the index
+     */
+    public void setIndexCache(SourceIndexCache indexCache) {
+        this.indexCache = indexCache;
+    }
+
+    /**
+     * Reads the commands of the previous patch, and then creates the patch
+     * as {@link PatchCreator#create()} does.
+     */
+    @Override
+    public void create() throws IOException {
+        boolean read = false;
+        try {
+            readPrevious();
+            read = true;
+            super.create();
+        } finally {
+            if (!read) {
+                // close the streams, which creating the patch would have
+                closeStreams();
+            }
+            previousTargetFile.close();
+        }
+    }
+
+    /**
+     * Reads every command of the previous patch with its absolute offsets,
+     * checking the patch against the source size and its own checksum.
+     */
+    private void readPrevious() throws IOException {
+        RandomAccessFile in = new RandomAccessFile(previousPatch, "r");
+        try {
+            PatchReader reader = new PatchReader(in.getChannel());
+            reader.readHeader();
+            long sourceLength = sourceFile.length();
+            if (reader.getSourceSize() != sourceLength) {
+                throw new IOException("Previous patch was not created from this source!");
+            }
+            previousLength = reader.getTargetSize();
+            while (reader.next()) {
+                if (size == commands.length) {
+                    commands = Arrays.copyOf(commands, size * 2);
+                    offsets = Arrays.copyOf(offsets, size * 2);
+                    outputs = Arrays.copyOf(outputs, size * 2);
+                }
+                commands[size] = reader.getMode() | (reader.getLength() << 2);
+                offsets[size] = reader.getOffset();
+                outputs[size] = reader.getOutputOffset();
+                size++;
+            }
+            reader.readFooter();
+            if (reader.getComputedPatchChecksum() != reader.getPatchChecksum()) {
+                throw new IOException("Previous patch checksum does not match!");
+            }
+            previousSourceChecksum = reader.getSourceChecksum();
+            setSource(SegmentedBuffer.map(sourceFile.getChannel(), FileChannel.MapMode.READ_ONLY, sourceLength), sourceLength, -1);
+        } finally {
+            in.close();
+        }
+    }
+
+    @Override
+    protected void prepare() throws IOException {
+        // the source commands of the previous patch are only valid for its source
+        if (sourceChecksum() != previousSourceChecksum) {
+            throw new IOException("Previous patch was not created from this source!");
+        }
+        if (previousTargetFile.length() != previousLength) {
+            throw new IOException("Previous target is not the file the previous patch produces!");
+        }
+        SegmentedBuffer previous = SegmentedBuffer.map(previousTargetFile.getChannel(), FileChannel.MapMode.READ_ONLY, previousLength);
+        // find the bytes shared at either end, without letting them overlap
+        long limit = Math.min(previousLength, targetLength);
+        long prefix = matchLength(previous, 0, target, 0, limit);
+        long suffix = 0;
+        while (suffix + 8 <= limit - prefix && previous.getLong(previousLength - suffix - 8) == target.getLong(targetLength - suffix - 8)) {
+            suffix += 8;
+        }
+        while (suffix < limit - prefix && previous.get(previousLength - suffix - 1) == target.get(targetLength - suffix - 1)) {
+            suffix++;
+        }
+        addRun(0, 0, prefix);
+        // match the rest of the target against the blocks between the changes
+        if (previousLength - suffix - prefix >= blockSize && targetLength - suffix - prefix >= blockSize) {
+            BlockIndex blocks = new BlockIndex(previous, prefix, previousLength - suffix, blockSize, PREVIOUS_STRIDE);
+            match(blocks, previous, prefix, previousLength - suffix, prefix, targetLength - suffix);
+        }
+        addRun(targetLength - suffix, previousLength - suffix, suffix);
+        // only the ranges between the runs need an index of the source
+        long shared = 0;
+        for (int i = 0; i < runs; i++) {
+            shared += runLengths[i];
+        }
+        if (shared < targetLength) {
+            if (indexCache != null) {
+                index = indexCache.get(source, sourceLength, sourceChecksum(), blockSize);
+            } else {
+                index = new BlockIndex(source, sourceLength, blockSize);
+            }
+        }
+        sortRuns();
+    }
+
+    /**
+     * Finds the runs of target bytes from {@code start} up to {@code end}
+     * which are also in the previous target between {@code previousStart} and
+     * {@code previousEnd}, as {@link BlockCreator} finds source matches.
+     */
+    private void match(BlockIndex blocks, SegmentedBuffer previous, long previousStart, long previousEnd, long start, long end) {
+        long offset = start, unmatched = start;
+        int hash = blocks.hash(target, start);
+        while (offset + blockSize <= end) {
+            long previousOffset = blocks.find(hash);
+            if (previousOffset >= 0 && matchLength(previous, previousOffset, target, offset, blockSize) == blockSize) {
+                // extend backwards over any unmatched bytes
+                long back = 0;
+                while (offset - back > unmatched && previousOffset - back > previousStart
+                        && previous.get(previousOffset - back - 1) == target.get(offset - back - 1)) {
+                    back++;
+                }
+                // and forwards as far as the data matches
+                long limit = Math.min(previousEnd - previousOffset, end - offset) - blockSize;
+                long matched = back + blockSize + matchLength(previous, previousOffset + blockSize, target, offset + blockSize, limit);
+                addRun(offset - back, previousOffset - back, matched);
+                offset += matched - back;
+                unmatched = offset;
+                if (offset + blockSize <= end) {
+                    hash = blocks.hash(target, offset);
+                }
+            } else {
+                if (offset + blockSize < end) {
+                    hash = blocks.roll(hash, target.get(offset), target.get(offset + blockSize));
+                }
+                offset++;
+            }
+        }
+    }
+
+    private void addRun(long targetOffset, long previousOffset, long length) {
+        if (length == 0) {
+            return;
+        }
+        if (runs == runTargets.length) {
+            runTargets = Arrays.copyOf(runTargets, runs * 2);
+            runPrevious = Arrays.copyOf(runPrevious, runs * 2);
+            runLengths = Arrays.copyOf(runLengths, runs * 2);
+        }
+        runTargets[runs] = targetOffset;
+        runPrevious[runs] = previousOffset;
+        runLengths[runs] = length;
+        runs++;
+    }
+
+    /**
+     * Orders the runs by their offset in the previous target.
+     */
+    private void sortRuns() {
+        Integer[] order = new Integer[runs];
+        for (int i = 0; i < runs; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(runPrevious[a], runPrevious[b]);
+            }
+        });
+        byPrevious = new int[runs];
+        previousStarts = new long[runs];
+        for (int i = 0; i < runs; i++) {
+            byPrevious[i] = order[i];
+            previousStarts[i] = runPrevious[order[i]];
+        }
+    }
+
+    @Override
+    protected long indexSize() {
+        return (index == null) ? 0 : index.size();
+    }
+
+    @Override
+    protected void doPatch(OpSink ops, long start, long end) throws IOException {
+        // the last run starting at or before the range
+        int run = Arrays.binarySearch(runTargets, 0, runs, start);
+        if (run < 0) {
+            run = Math.max(-run - 2, 0);
+        }
+        long offset = start;
+        while (offset < end) {
+            long runStart = (run < runs) ? Math.max(runTargets[run], offset) : end;
+            long runEnd = (run < runs) ? Math.min(runTargets[run] + runLengths[run], end) : end;
+            if (runEnd <= offset) {
+                run++;
+                continue;
+            }
+            if (offset < Math.min(runStart, end)) {
+                BlockCreator.diff(ops, index, source, sourceLength, target, offset, Math.min(runStart, end));
+                offset = Math.min(runStart, end);
+            }
+            if (offset < runEnd) {
+                reuse(ops, offset, runEnd, run);
+                offset = runEnd;
+            }
+            run++;
+        }
+    }
+
+    /**
+     * Passes on the commands of the previous patch producing the target bytes
+     * from {@code start} up to {@code end}, which are those of the previous
+     * target moved along by the shift of the run. Commands are clipped to the
+     * range, and reads and copies of the previous target become copies of the
+     * same bytes at their new place. A target copy of bytes not reproduced by
+     * a run already written cannot be reused, so its bytes are written as
+     * literals.
+     */
+    private void reuse(OpSink ops, long start, long end, int run) throws IOException {
+        long shift = runTargets[run] - runPrevious[run];
+        long from = start - shift, to = end - shift;
+        // the last command starting at or before the range
+        int i = Arrays.binarySearch(outputs, 0, size, from);
+        if (i < 0) {
+            i = Math.max(-i - 2, 0);
+        }
+        for (; i < size && outputs[i] < to; i++) {
+            long mode = commands[i] & 3, length = commands[i] >>> 2;
+            long skip = Math.max(from - outputs[i], 0);
+            long count = Math.min(outputs[i] + length, to) - outputs[i] - skip;
+            long offset = offsets[i] + skip;
+            if (mode == SOURCE_READ || mode == SOURCE_COPY) {
+                // the writer turns copies from the output offset back into reads
+                ops.sourceCopy(offset, count);
+            } else if (mode == TARGET_COPY) {
+                long copy = copyOffset(offset, count, run, outputs[i] + skip + shift);
+                if (copy >= 0) {
+                    ops.targetCopy(copy, count);
+                } else {
+                    ops.targetRead(count);
+                }
+            } else {
+                ops.targetRead(count);
+            }
+        }
+    }
+
+    /**
+     * Returns where the previous target bytes a target copy reads are in the
+     * new target, or -1 if they are not there before the copy. A copy within
+     * the same run is as valid as it was in the previous patch, even where it
+     * overlaps its own output.
+     */
+    private long copyOffset(long offset, long count, int run, long position) {
+        int i = Arrays.binarySearch(previousStarts, offset);
+        if (i < 0) {
+            i = -i - 2;
+        }
+        if (i < 0) {
+            return -1;
+        }
+        int found = byPrevious[i];
+        if (offset + count > runPrevious[found] + runLengths[found]) {
+            return -1;
+        }
+        long copy = offset + runTargets[found] - runPrevious[found];
+        return (found == run || copy + count <= position) ? copy : -1;
+    }
+
+    public static void main(final String[] arguments) throws IOException {
+        if (arguments == null || arguments.length != 5) {//Check for valid arguments
+            System.out.println("You must have valid arguments!");
+            System.out.println("The first argument, should be where the source file is located (the original file which both patches apply to).");
+            System.out.println("The second argument, should be where the previous modified file is located.");
+            System.out.println("The third argument, should be where the previous patch is located.");
+            System.out.println("The fourth argument, should be where the modified file is located.");
+            System.out.println("The fifth argument, should be where the patch should be put.");
+            return;
+        }
+        new IncrementalCreator(new File(arguments[0]), new File(arguments[1]), new File(arguments[2]), new File(arguments[3]), new File(arguments[4])).create();
+    }
+}
@@ -31,16 +31,19 @@ package net.md_5.jbeat;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import static net.md_5.jbeat.Shared.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 
 /**
  * Creates straight binary patches in a linear fashion. No effort is expended
- * applying delta compression.
+ * applying delta compression. Matches against the source and runs of equal
+ * bytes are found eight bytes at a time, and remembered until the scan passes
+ * their end, so each target byte is only examined a constant number of times.
  */
 public final class LinearCreator extends PatchCreator {
 
-    private int targetReadLength, targetRelativeOffset, outputOffset;
-
     public LinearCreator(File original, File modified, File output) throws FileNotFoundException {
         super(original, modified, output);
     }
@@ -49,60 +52,120 @@ public final class LinearCreator extends PatchCreator {
         super(original, modified, output, header);
     }
 
+    public LinearCreator(ByteBuffer original, ByteBuffer modified, WritableByteChannel output) {
+        this(original, modified, output, null);
+    }
+
+    /**
+     * Creates a new linear patch creator instance over data already in memory,
+     * from the position to the limit of each buffer. The patch is written
+     * straight to the channel, which is left open.
+     *
+     * @param original data, which the patch applicator will have access to
+     * @param modified data which has been changed from the original
+     * @param output channel to which the patch will be written
+     * @param header to be used as beat metadata
+     */
+    public LinearCreator(ByteBuffer original, ByteBuffer modified, WritableByteChannel output, String header) {
+        super(original, modified, output, header);
+    }
+
+    public LinearCreator(byte[] original, byte[] modified, WritableByteChannel output) {
+        this(ByteBuffer.wrap(original), ByteBuffer.wrap(modified), output, null);
+    }
+
+    /**
+     * Creates a new linear patch creator instance over the remaining data of
+     * two channels, which are read to their end, or mapped if file channels.
+     *
+     * @throws IOException when either channel cannot be read
+     */
+    public LinearCreator(ReadableByteChannel original, ReadableByteChannel modified, WritableByteChannel output) throws IOException {
+        this(readFully(original), readFully(modified), output, null);
+    }
+
     @Override
-    protected void doPatch() throws IOException {
-        while (outputOffset < target.limit()) {
-            int sourcePos = 0;
-            for (int n = 0; outputOffset + n < Math.min(sourceLength, targetLength); n++) {
-                if (source.get(outputOffset + n) != target.get(outputOffset + n)) {
-                    break;
+    protected void doPatch(OpSink ops, long start, long end) throws IOException {
+        long sourceEnd = Math.min(sourceLength, end);
+        // end of the match between source and target at the same offset, and
+        // end of the run of equal bytes, both found by scanning from a point
+        // before the current offset and valid until it passes them
+        long matchEnd = start, runEnd = start;
+        long outputOffset = start;
+        while (outputOffset < end) {
+            if (outputOffset >= matchEnd) {
+                matchEnd = outputOffset;
+                // most literal bytes differ straight away, so check one first
+                if (outputOffset < sourceEnd && source.get(outputOffset) == target.get(outputOffset)) {
+                    matchEnd += 1 + matchLength(source, outputOffset + 1, target, outputOffset + 1, sourceEnd - outputOffset - 1);
                 }
-                sourcePos++;
             }
+            long sourcePos = matchEnd - outputOffset;
 
-            int rleLength = 0;
-            for (int n = 1; outputOffset + n < target.limit(); n++) {
-                if (target.get(outputOffset) != target.get(outputOffset + n)) {
-                    break;
+            if (outputOffset >= runEnd) {
+                byte value = target.get(outputOffset);
+                runEnd = outputOffset + 1;
+                if (runEnd < end && target.get(runEnd) == value) {
+                    runEnd += 1 + runLength(target, runEnd + 1, value, end - runEnd - 1);
                 }
-                rleLength++;
             }
+            long rleLength = runEnd - outputOffset - 1;
 
             if (rleLength >= 4) {
                 //write byte to repeat
-                targetReadLength++;
-                outputOffset++;
-                targetReadFlush();
+                ops.targetRead(1);
 
                 //copy starting from repetition byte
-                encode(out, TARGET_COPY | ((rleLength - 1) << 2));
-                int relativeOffset = (outputOffset - 1) - targetRelativeOffset;
-                encode(out, relativeOffset << 1);
-                outputOffset += rleLength;
-                targetRelativeOffset = outputOffset - 1;
+                ops.targetCopy(outputOffset, rleLength);
+                outputOffset += 1 + rleLength;
             } else if (sourcePos >= 4) {
-                targetReadFlush();
-                encode(out, SOURCE_READ | ((sourcePos - 1) << 2));
+                ops.sourceRead(sourcePos);
                 outputOffset += sourcePos;
             } else {
-                targetReadLength++;
+                ops.targetRead(1);
                 outputOffset++;
             }
         }
-        targetReadFlush();
     }
 
     /**
-     * Write a complete target read statement.
+     * Counts the number of bytes equal to the specified value at the offset of
+     * the buffer, up to the specified limit, a segment at a time.
      */
-    private void targetReadFlush() throws IOException {
-        if (targetReadLength != 0) {
-            encode(out, TARGET_READ | ((targetReadLength - 1) << 2));
-            int offset = outputOffset - targetReadLength;
-            while (targetReadLength != 0) {
-                out.write(target.get(offset++));
-                targetReadLength--;
+    private static long runLength(SegmentedBuffer buffer, long offset, byte value, long limit) {
+        long length = 0;
+        while (length < limit) {
+            ByteBuffer view = buffer.view(offset + length, limit - length);
+            int count = view.remaining();
+            int run = runLength(view, view.position(), value, count);
+            length += run;
+            if (run != count) {
+                break;
             }
         }
+        return length;
+    }
+
+    /**
+     * Counts the number of bytes equal to the specified value at the offset of
+     * the buffer, up to the specified limit. Compares eight bytes at a time
+     * where possible.
+     */
+    private static int runLength(ByteBuffer buffer, int offset, byte value, int limit) {
+        long pattern = (value & 0xFFL) * 0x0101010101010101L;
+        int length = 0;
+        while (length + 8 <= limit) {
+            long difference = buffer.getLong(offset + length) ^ pattern;
+            if (difference != 0) {
+                return length + ((buffer.order() == ByteOrder.BIG_ENDIAN)
+                        ? Long.numberOfLeadingZeros(difference)
+                        : Long.numberOfTrailingZeros(difference)) / 8;
+            }
+            length += 8;
+        }
+        while (length < limit && buffer.get(offset + length) == value) {
+            length++;
+        }
+        return length;
     }
 }
@@ -0,0 +1,107 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.IOException;
+import java.util.Arrays;
+import static net.md_5.jbeat.Shared.*;
+
+/**
+ * Records commands in memory so that they may be replayed into another sink
+ * later. Used to collect the commands of target segments differenced out of
+ * order.
+ */
+final class OpList implements OpSink {
+
+    /**
+     * Mode of each command in the low two bits, and its length above them.
+     */
+    private long[] commands = new long[64];
+    /**
+     * Absolute offset of each copy command.
+     */
+    private long[] offsets = new long[64];
+    /**
+     * Number of commands recorded.
+     */
+    private int size;
+
+    @Override
+    public void sourceRead(long length) {
+        add(SOURCE_READ, 0, length);
+    }
+
+    @Override
+    public void targetRead(long length) {
+        add(TARGET_READ, 0, length);
+    }
+
+    @Override
+    public void sourceCopy(long offset, long length) {
+        add(SOURCE_COPY, offset, length);
+    }
+
+    @Override
+    public void targetCopy(long offset, long length) {
+        add(TARGET_COPY, offset, length);
+    }
+
+    private void add(long mode, long offset, long length) {
+        // merge runs of reads, which implementations often pass a byte at a time
+        if ((mode == SOURCE_READ || mode == TARGET_READ) && size != 0 && (commands[size - 1] & 3) == mode) {
+            commands[size - 1] += length << 2;
+            return;
+        }
+        if (size == commands.length) {
+            commands = Arrays.copyOf(commands, size * 2);
+            offsets = Arrays.copyOf(offsets, size * 2);
+        }
+        commands[size] = mode | (length << 2);
+        offsets[size] = offset;
+        size++;
+    }
+
+    /**
+     * Passes every recorded command, in order, to the specified sink.
+     */
+    void replay(OpSink ops) throws IOException {
+        for (int i = 0; i < size; i++) {
+            long mode = commands[i] & 3, length = commands[i] >>> 2;
+            if (mode == SOURCE_READ) {
+                ops.sourceRead(length);
+            } else if (mode == TARGET_READ) {
+                ops.targetRead(length);
+            } else if (mode == SOURCE_COPY) {
+                ops.sourceCopy(offsets[i], length);
+            } else {
+                ops.targetCopy(offsets[i], length);
+            }
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Locale;
+
+/**
+ * Client of a {@link PatchDaemon}, which has the daemon create, apply and
+ * verify patches in its warmed up JVM rather than doing the work itself. The
+ * daemon opens the files, so they are named by absolute path. Every request
+ * carries the token the daemon wrote when it started, which the client reads
+ * from the daemon's token file. Requests over one client are carried out one
+ * at a time, in order.
+ */
+public final class PatchClient implements Closeable {
+
+    /**
+     * Connection to the daemon.
+     */
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    /**
+     * Token of the daemon, sent with each request.
+     */
+    private final byte[] token;
+
+    /**
+     * Connects to a daemon listening on a port of the loopback interface,
+     * which wrote its token to the default file, see
+     * {@link PatchDaemon#tokenFile(int)}.
+     *
+     * @param port on which the daemon listens
+     * @throws IOException when there is no daemon listening, or its token
+     * cannot be read
+     */
+    public PatchClient(int port) throws IOException {
+        this(port, PatchDaemon.tokenFile(port));
+    }
+
+    /**
+     * Connects to a daemon listening on a port of the loopback interface.
+     *
+     * @param port on which the daemon listens
+     * @param tokenFile to which the daemon wrote its token
+     * @throws IOException when there is no daemon listening, or its token
+     * cannot be read
+     */
+    public PatchClient(int port, File tokenFile) throws IOException {
+        this.token = PatchDaemon.readToken(tokenFile);
+        this.socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    /**
+     * Creates a patch, see {@link BatchCreator.Style} for the creators.
+     *
+     * @return the length of the patch created
+     * @throws IOException when the daemon fails to create the patch, with its
+     * reason
+     */
+    public long create(BatchCreator.Style style, File source, File target, File output) throws IOException {
+        return Long.parseLong(request(PatchDaemon.CREATE, style.name(), path(source), path(target), path(output)));
+    }
+
+    /**
+     * Applies a patch, see {@link Patcher#patch()}.
+     *
+     * @throws IOException when the daemon fails to apply the patch, with its
+     * reason
+     */
+    public void apply(File patch, File source, File target) throws IOException {
+        request(PatchDaemon.APPLY, path(patch), path(source), path(target));
+    }
+
+    /**
+     * Checks a patch without producing any output, see
+     * {@link PatcherIO#verify()}.
+     *
+     * @throws IOException when the patch is damaged or does not apply to the
+     * source, with the reason
+     */
+    public void verify(File patch, File source) throws IOException {
+        request(PatchDaemon.VERIFY, path(patch), path(source));
+    }
+
+    private static String path(File file) {
+        return file.getAbsolutePath();
+    }
+
+    /**
+     * Sends a request and waits for its answer.
+     *
+     * @return the result of the request
+     */
+    private synchronized String request(int request, String... arguments) throws IOException {
+        out.write(token);
+        out.writeByte(request);
+        out.writeByte(arguments.length);
+        for (String argument : arguments) {
+            out.writeUTF(argument);
+        }
+        out.flush();
+        boolean ok = in.readBoolean();
+        String message = in.readUTF();
+        if (!ok) {
+            throw new IOException(message);
+        }
+        return message;
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    public static void main(final String[] arguments) throws IOException {
+        if (arguments == null || arguments.length < 4) {//Check for valid arguments
+            System.out.println("You must have valid arguments!");
+            System.out.println("The first argument, should be the port on which the daemon listens.");
+            System.out.println("The second argument, should be the request: create, apply or verify.");
+            System.out.println("For create, the remaining arguments should be the style of patch (linear, delta or block), the source, the modified file and where the patch should be put.");
+            System.out.println("For apply, the remaining arguments should be the patch, the source and where the patched file should be put.");
+            System.out.println("For verify, the remaining arguments should be the patch and the source.");
+            return;
+        }
+        PatchClient client = new PatchClient(Integer.parseInt(arguments[0]));
+        try {
+            String request = arguments[1].toLowerCase(Locale.ENGLISH);
+            if (request.equals("create") && arguments.length == 6) {
+                BatchCreator.Style style;
+                try {
+                    style = BatchCreator.Style.valueOf(arguments[2].toUpperCase(Locale.ENGLISH));
+                } catch (IllegalArgumentException ex) {
+                    System.out.println("Unknown patch style \"" + arguments[2] + "\"!");
+                    return;
+                }
+                client.create(style, new File(arguments[3]), new File(arguments[4]), new File(arguments[5]));
+            } else if (request.equals("apply") && arguments.length == 5) {
+                client.apply(new File(arguments[2]), new File(arguments[3]), new File(arguments[4]));
+            } else if (request.equals("verify") && arguments.length == 4) {
+                client.verify(new File(arguments[2]), new File(arguments[3]));
+            } else {
+                System.out.println("Unknown request \"" + arguments[1] + "\", or wrong number of arguments for it!");
+            }
+        } finally {
+            client.close();
+        }
+    }
+}
@@ -0,0 +1,414 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Composes a chain of patches, each applying to the target of the one before
+ * it, into a single patch from the source of the first to the target of the
+ * last, without producing any of the intermediate files. <p> The commands of
+ * the earlier patch are indexed by the range of its target which each one
+ * produces. Every source read or copy of the later patch is then looked up in
+ * that index and replaced by whatever produced those bytes: copies from the
+ * original source, literal bytes, or, for target copies, the bytes they in
+ * turn were copied from. Overlapping target copies repeat with the distance
+ * between their source and destination, which is kept as a target copy in
+ * the composed patch rather than expanded.
+ */
+public final class PatchComposer {
+
+    /**
+     * Stack entry resolving a range of the intermediate target.
+     */
+    private static final long RESOLVE = 0;
+    /**
+     * Stack entry copying from earlier in the composed target.
+     */
+    private static final long COPY = 1;
+    /**
+     * Most literal bytes held before being written as one command.
+     */
+    private static final int MAX_LITERAL = 1 << 20;
+    /**
+     * Shortest range of literal bytes copied from where they were already
+     * written rather than repeated.
+     */
+    private static final int MIN_LITERAL_COPY = 8;
+    /**
+     * The patches to compose, in the order they would be applied.
+     */
+    private final File[] patches;
+    /**
+     * The location to which the composed patch will be output.
+     */
+    private final File output;
+    /**
+     * The earlier patch, whose commands are indexed.
+     */
+    private SegmentedBuffer first;
+    /**
+     * Number of commands of the earlier patch.
+     */
+    private int count;
+    /**
+     * Offset of the intermediate target at which each command starts, plus a
+     * final entry for its end.
+     */
+    private long[] starts = new long[64];
+    /**
+     * Mode of each command.
+     */
+    private byte[] modes = new byte[64];
+    /**
+     * Offset of each command: into the source for source reads and copies,
+     * into the earlier patch for target reads and into the intermediate target
+     * for target copies.
+     */
+    private long[] offsets = new long[64];
+    /**
+     * For target reads, the intermediate target offset, length and composed
+     * target offset of the longest range of their literal bytes written so
+     * far, which later references copy instead of repeating.
+     */
+    private long[] writtenFrom = new long[64], writtenLength = new long[64], writtenAt = new long[64];
+    /**
+     * Ranges waiting to be resolved, as triples of kind, offset and length.
+     */
+    private long[] stack = new long[48];
+    private int depth;
+    /**
+     * Literal bytes waiting to be written as one command.
+     */
+    private byte[] literal = new byte[4096];
+    private int literalLength;
+    /**
+     * Writer of the composed patch.
+     */
+    private PatchWriter writer;
+    /**
+     * Offset of the composed target reached so far.
+     */
+    private long outputOffset;
+
+    /**
+     * Creates a new patch composer instance. In order to compose the patches
+     * the {@link #compose()} method must be called.
+     *
+     * @param first patch from the original file to the intermediate one
+     * @param second patch from the intermediate file to the final one
+     * @param output location to which the composed patch will be output
+     */
+    public PatchComposer(File first, File second, File output) {
+        this(new File[]{first, second}, output);
+    }
+
+    /**
+     * Creates a new patch composer instance for a chain of patches.
+     *
+     * @param patches at least two patches, each applying to the target of the
+     * one before it
+     * @param output location to which the composed patch will be output
+     */
+    public PatchComposer(File[] patches, File output) {
+        if (patches.length < 2) {
+            throw new IllegalArgumentException("At least two patches are required");
+        }
+        this.patches = patches.clone();
+        this.output = output;
+    }
+
+    /**
+     * Composes the patches. Each intermediate composition is held in memory,
+     * and only the final one is written out. The checksums of every patch and
+     * the sizes and checksums joining consecutive patches are verified.
+     */
+    public void compose() throws IOException {
+        SegmentedBuffer composed = map(patches[0]);
+        for (int i = 1; i < patches.length; i++) {
+            SegmentedBuffer next = map(patches[i]);
+            if (i == patches.length - 1) {
+                OutputStream out = new FileOutputStream(output);
+                try {
+                    compose(composed, next, out);
+                } finally {
+                    out.close();
+                }
+            } else {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                compose(composed, next, out);
+                composed = SegmentedBuffer.wrap(ByteBuffer.wrap(out.toByteArray()));
+            }
+        }
+    }
+
+    private static SegmentedBuffer map(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            return SegmentedBuffer.map(in.getChannel(), FileChannel.MapMode.READ_ONLY, in.length());
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Composes two patches held in buffers, writing the result to the
+     * stream.
+     */
+    private void compose(SegmentedBuffer first, SegmentedBuffer second, OutputStream out) throws IOException {
+        PatchReader earlier = index(first);
+        PatchReader later = PatchReader.of(second, 0, second.size());
+        later.readHeader();
+        if (later.getSourceSize() != earlier.getTargetSize()) {
+            throw new IOException("Patch applies to a file of a different size than the one before produces!");
+        }
+
+        writer = new PatchWriter(out);
+        writer.writeHeader(earlier.getSourceSize(), later.getTargetSize(), later.getMetadata());
+        outputOffset = 0;
+        while (later.next()) {
+            long length = later.getLength();
+            int mode = later.getMode();
+            if (mode == PatchReader.SOURCE_READ || mode == PatchReader.SOURCE_COPY) {
+                resolve(later.getOffset(), length);
+            } else if (mode == PatchReader.TARGET_READ) {
+                while (length != 0) {
+                    int room = reserve(length);
+                    ByteBuffer into = ByteBuffer.wrap(literal, literalLength, room);
+                    int read = later.readLiteral(into);
+                    literalLength += read;
+                    outputOffset += read;
+                    length -= read;
+                }
+            } else {
+                flushLiteral();
+                writer.targetCopy(later.getOffset(), length);
+                outputOffset += length;
+            }
+        }
+        flushLiteral();
+        later.readFooter();
+        if (later.getComputedPatchChecksum() != later.getPatchChecksum()) {
+            throw new IOException("Patch checksum does not match!");
+        }
+        if (later.getSourceChecksum() != earlier.getTargetChecksum()) {
+            throw new IOException("Patch applies to a different file than the one before produces!");
+        }
+        writer.writeFooter(earlier.getSourceChecksum(), later.getTargetChecksum());
+        writer = null;
+        this.first = null;
+    }
+
+    /**
+     * Reads every command of the earlier patch into the index, returning the
+     * reader for its header and footer.
+     */
+    private PatchReader index(SegmentedBuffer patch) throws IOException {
+        first = patch;
+        PatchReader reader = PatchReader.of(patch, 0, patch.size());
+        reader.readHeader();
+        count = 0;
+        while (reader.next()) {
+            if (count + 1 == starts.length) {
+                starts = Arrays.copyOf(starts, starts.length * 2);
+                modes = Arrays.copyOf(modes, modes.length * 2);
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                writtenFrom = Arrays.copyOf(writtenFrom, writtenFrom.length * 2);
+                writtenLength = Arrays.copyOf(writtenLength, writtenLength.length * 2);
+                writtenAt = Arrays.copyOf(writtenAt, writtenAt.length * 2);
+            }
+            writtenLength[count] = 0;
+            starts[count] = reader.getOutputOffset();
+            modes[count] = (byte) reader.getMode();
+            offsets[count] = (reader.getMode() == PatchReader.TARGET_READ) ? reader.consumed() : reader.getOffset();
+            if (reader.getMode() == PatchReader.TARGET_COPY
+                    && (reader.getOffset() < 0 || reader.getOffset() >= reader.getOutputOffset())) {
+                throw new IOException("Target copy does not refer to already patched data!");
+            }
+            count++;
+        }
+        starts[count] = reader.getTargetSize();
+        reader.readFooter();
+        if (reader.getComputedPatchChecksum() != reader.getPatchChecksum()) {
+            throw new IOException("Patch checksum does not match!");
+        }
+        return reader;
+    }
+
+    /**
+     * Writes whatever produced the specified range of the intermediate target
+     * to the composed patch.
+     */
+    private void resolve(long position, long length) throws IOException {
+        push(RESOLVE, position, length);
+        while (depth != 0) {
+            depth -= 3;
+            long kind = stack[depth];
+            position = stack[depth + 1];
+            length = stack[depth + 2];
+            if (kind == COPY) {
+                flushLiteral();
+                writer.targetCopy(position, length);
+                outputOffset += length;
+                continue;
+            }
+            int op = find(position);
+            long available = Math.min(length, starts[op + 1] - position);
+            if (available < length) {
+                // the rest of the range comes after this command
+                push(RESOLVE, position + available, length - available);
+            }
+            long offset = offsets[op] + position - starts[op];
+            if (modes[op] == PatchReader.SOURCE_READ || modes[op] == PatchReader.SOURCE_COPY) {
+                flushLiteral();
+                writer.sourceCopy(offset, available);
+                outputOffset += available;
+            } else if (modes[op] == PatchReader.TARGET_READ) {
+                if (offset + available > first.size()) {
+                    throw new IOException("Patch command refers to data outside of its file!");
+                }
+                long from = writtenFrom[op];
+                if (available >= MIN_LITERAL_COPY && position >= from && position + available <= from + writtenLength[op]) {
+                    // these bytes are already in the composed target
+                    flushLiteral();
+                    writer.targetCopy(writtenAt[op] + position - from, available);
+                    outputOffset += available;
+                    continue;
+                }
+                if (available > writtenLength[op]) {
+                    writtenFrom[op] = position;
+                    writtenLength[op] = available;
+                    writtenAt[op] = outputOffset;
+                }
+                while (available != 0) {
+                    int room = reserve(available);
+                    first.get(offset, literal, literalLength, room);
+                    offset += room;
+                    literalLength += room;
+                    outputOffset += room;
+                    available -= room;
+                }
+            } else {
+                // the command repeats every distance bytes, so once one period
+                // has been resolved the rest copies it within the composed target
+                long distance = starts[op] - offsets[op];
+                long phase = (position - starts[op]) % distance;
+                if (available > distance) {
+                    push(COPY, outputOffset, available - distance);
+                    available = distance;
+                }
+                long head = Math.min(available, distance - phase);
+                if (head < available) {
+                    push(RESOLVE, offsets[op], available - head);
+                }
+                push(RESOLVE, offsets[op] + phase, head);
+            }
+        }
+    }
+
+    /**
+     * Finds the command of the earlier patch which produces the specified
+     * offset of the intermediate target.
+     */
+    private int find(long position) throws IOException {
+        if (position < 0 || position >= starts[count]) {
+            throw new IOException("Patch command refers to data outside of its file!");
+        }
+        int low = 0, high = count - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (starts[middle] <= position) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    private void push(long kind, long position, long length) {
+        if (depth + 3 > stack.length) {
+            stack = Arrays.copyOf(stack, stack.length * 2);
+        }
+        stack[depth++] = kind;
+        stack[depth++] = position;
+        stack[depth++] = length;
+    }
+
+    /**
+     * Makes room for more literal bytes, growing the pending literal up to a
+     * limit and writing it out when full.
+     *
+     * @return the number of bytes, at most the specified length, there is now
+     * room for
+     */
+    private int reserve(long length) throws IOException {
+        long wanted = literalLength + length;
+        if (wanted > literal.length && literal.length < MAX_LITERAL) {
+            literal = Arrays.copyOf(literal, (int) Math.min(Math.max(wanted, literal.length * 2L), MAX_LITERAL));
+        }
+        if (literalLength == literal.length) {
+            flushLiteral();
+        }
+        return (int) Math.min(length, literal.length - literalLength);
+    }
+
+    private void flushLiteral() throws IOException {
+        if (literalLength != 0) {
+            writer.targetRead(ByteBuffer.wrap(literal, 0, literalLength));
+            literalLength = 0;
+        }
+    }
+
+    public static void main(final String[] arguments) throws IOException {
+        if (arguments == null || arguments.length < 3) {//Check for valid arguments
+            System.out.println("You must have valid arguments!");
+            System.out.println("The first arguments, should be where the patch files are located, in the order they would be applied.");
+            System.out.println("The last argument, should be where the composed patch file should be put.");
+            return;
+        }
+        File[] patches = new File[arguments.length - 1];
+        for (int i = 0; i < patches.length; i++) {
+            patches[i] = new File(arguments[i]);
+            if (!patches[i].exists()) {//Check if each patch file exists, if it doesn't, throw a FileNotFoundException.
+                throw new FileNotFoundException("The patch file does not exist at location \"" + arguments[i] + "\"!");
+            }
+        }
+        new PatchComposer(patches, new File(arguments[arguments.length - 1])).compose();
+    }
+}
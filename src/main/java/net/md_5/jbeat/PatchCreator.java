@@ -28,16 +28,25 @@
  */
 package net.md_5.jbeat;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import static net.md_5.jbeat.Shared.*;
 
 /**
@@ -46,41 +55,74 @@ import static net.md_5.jbeat.Shared.*;
 abstract class PatchCreator {
 
     /**
-     * The clean, unmodified file.
+     * Smallest target segment which will be differenced on its own thread.
+     */
+    private static final int MIN_SEGMENT_SIZE = 1 << 20;
+    /**
+     * Distance past the nominal end of a segment searched for a better place
+     * to split the target.
+     */
+    private static final int SEGMENT_ALIGN_WINDOW = 1 << 16;
+
+    /**
+     * The clean, unmodified file, or null when given in memory.
      */
     protected final RandomAccessFile sourceFile;
     /**
      * The source file mapped into memory.
      */
-    protected ByteBuffer source;
+    protected SegmentedBuffer source;
     /**
      * Length of the source file.
      */
     protected long sourceLength;
     /**
-     * The modified file which we will difference with the source file.
+     * The modified file which we will difference with the source file, or
+     * null when given in memory.
      */
     protected final RandomAccessFile targetFile;
     /**
      * The target file mapped into memory.
      */
-    protected ByteBuffer target;
+    protected SegmentedBuffer target;
     /**
      * Length of the target file.
      */
     protected long targetLength;
     /**
-     * The location to which the patch will be generated.
+     * The location to which the patch will be generated, or null when written
+     * to a channel.
      */
     protected final File outFile;
     /**
-     * Stream to the patch output.
+     * Stream to the patch output, or null when written to a channel.
      */
     protected final OutputStream out;
+    /**
+     * Channel to the patch output, owned by the caller, or null when written
+     * to a file.
+     */
+    private final WritableByteChannel channel;
     /**
      * UTF-8, optional patch header.
      */
     private final String header;
+    /**
+     * Number of threads differencing the target.
+     */
+    private int parallelism = 1;
+    /**
+     * Arena from which the output staging buffer is taken, or null.
+     */
+    private BufferArena arena;
+    /**
+     * Checksum of the source, or -1 if not yet computed.
+     */
+    private long sourceChecksum = -1;
+    /**
+     * Listener told about the patch once created, or null.
+     */
+    private PatchMetrics metrics;
 
     /**
      * Creates a new beat patch creator instance. In order to create and output
@@ -96,98 +138,320 @@ abstract class PatchCreator {
     protected PatchCreator(File original, File modified, File output, String header) throws FileNotFoundException {
         this.sourceFile = new RandomAccessFile(original, "r");
         this.targetFile = new RandomAccessFile(modified, "r");
-        this.out = new BufferedOutputStream(new FileOutputStream(output));
+        this.out = new FileOutputStream(output);
         this.outFile = output;
+        this.channel = null;
+        this.header = header;
+    }
+
+    /**
+     * Creates a new beat patch creator instance over data already in memory,
+     * from the position to the limit of each buffer, heap or direct. The
+     * patch is written straight to the channel, which is left open.
+     *
+     * @param original data, which the patch applicator will have access to
+     * @param modified data which has been changed from the original
+     * @param output channel to which the patch will be written
+     * @param header to be used as beat metadata
+     */
+    protected PatchCreator(ByteBuffer original, ByteBuffer modified, WritableByteChannel output, String header) {
+        // duplicates are big endian, as matching words requires of both
+        this.source = SegmentedBuffer.wrap(original.duplicate());
+        this.sourceLength = source.size();
+        this.target = SegmentedBuffer.wrap(modified.duplicate());
+        this.targetLength = target.size();
+        this.sourceFile = null;
+        this.targetFile = null;
+        this.out = null;
+        this.outFile = null;
+        this.channel = output;
         this.header = header;
     }
 
+    /**
+     * Reads the remainder of a channel into memory, for the constructors
+     * taking channels. File channels are mapped from their position instead.
+     */
+    protected static ByteBuffer readFully(ReadableByteChannel in) throws IOException {
+        if (in instanceof FileChannel) {
+            FileChannel file = (FileChannel) in;
+            long length = file.size() - file.position();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("Channel holds too much data to be read into memory!");
+            }
+            return file.map(FileChannel.MapMode.READ_ONLY, file.position(), length);
+        }
+        ByteBuffer data = ByteBuffer.allocate(PatcherIO.BUFFER_SIZE);
+        while (in.read(data) != -1) {
+            if (!data.hasRemaining()) {
+                if (data.capacity() == Integer.MAX_VALUE) {
+                    throw new IOException("Channel holds too much data to be read into memory!");
+                }
+                ByteBuffer larger = ByteBuffer.allocate((int) Math.min(data.capacity() * 2L, Integer.MAX_VALUE));
+                data.flip();
+                larger.put(data);
+                data = larger;
+            }
+        }
+        data.flip();
+        return data;
+    }
+
     protected PatchCreator(File original, File modified, File output) throws FileNotFoundException {
         this(original, modified, output, null);
     }
 
+    /**
+     * Sets the number of threads used to difference the target. With more
+     * than one thread, large targets are split into segments which are
+     * differenced concurrently against the shared source, and the resulting
+     * commands are stitched back together into a single patch. Patches may be
+     * slightly larger, as matches cannot span the segment boundaries.
+     *
+     * @param parallelism number of threads to use, 1 by default
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1");
+        }
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Sets an arena from which the buffer staging the patch output is taken,
+     * so that creating many patches allocates nothing on the heap for it.
+     *
+     * @param arena the arena to use, or null to allocate the buffer
+     */
+    public void setBufferArena(BufferArena arena) {
+        this.arena = arena;
+    }
+
+    /**
+     * Sets a listener which is told the command counts, phase timings and
+     * sizes of the patch once created. Nothing is measured without one.
+     *
+     * @param metrics the listener, or null for none
+     */
+    public void setMetrics(PatchMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Supplies the source already mapped and checksummed, so that patches
+     * created against the same source may share them rather than each
+     * mapping and checksumming it again.
+     */
+    void setSource(SegmentedBuffer source, long sourceLength, long sourceChecksum) {
+        this.source = source;
+        this.sourceLength = sourceLength;
+        this.sourceChecksum = sourceChecksum;
+    }
+
     /**
      * Creates a beat version 1 format binary patch of the two files specified
      * in the contrstructor. This method will header the file with beat
      * information, delegate binary differencing to the specific patch style
      * implementation, and then finish the patch with the various checksums
-     * before writing to disk.
+     * before writing to disk. The checksum of the patch itself is computed as
+     * it is written.
      */
     public void create() throws IOException {
+        PatchStats stats = (metrics == null) ? null : new PatchStats();
+        long start = System.nanoTime(), time = start;
+        PatchWriter writer = null;
         try {
-            // store file lengths
-            sourceLength = sourceFile.length();
-            targetLength = targetFile.length();
-            // map the files
-            source = sourceFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, sourceLength);
-            target = targetFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, targetLength);
-            // write header
-            for (char c : MAGIC_HEADER) {
-                out.write(c);
+            // map the files, unless the source has been supplied
+            if (source == null) {
+                sourceLength = sourceFile.length();
+                source = SegmentedBuffer.map(sourceFile.getChannel(), FileChannel.MapMode.READ_ONLY, sourceLength);
+            }
+            if (target == null) {
+                targetLength = targetFile.length();
+                target = SegmentedBuffer.map(targetFile.getChannel(), FileChannel.MapMode.READ_ONLY, targetLength);
             }
-            // write original size
-            encode(out, sourceLength);
-            // write modified size
-            encode(out, targetLength);
-            // write header length
-            int headerLength = (header == null) ? 0 : header.length();
-            encode(out, headerLength);
-            // write the header
-            if (header != null) {
-                ByteBuffer encoded = ENCODER.encode(CharBuffer.wrap(header));
-                out.write(encoded.array(), encoded.arrayOffset(), encoded.limit());
+            time = PatchStats.lap(stats, PatchStats.Phase.MAP, time);
+            // write header
+            // the channel of a file stream is its own, so writes are not copied
+            WritableByteChannel output = (channel != null) ? channel : (arena != null) ? Channels.newChannel(out) : null;
+            if (output == null) {
+                writer = new PatchWriter(out, target);
+            } else {
+                writer = (arena == null) ? new PatchWriter(output, target) : new PatchWriter(output, target, arena);
             }
+            writer.setStats(stats);
+            writer.writeHeader(sourceLength, targetLength, header);
             // do the actual patch
-            doPatch();
-            // write original checksum
-            writeIntLE(out, (int) checksum(source, sourceLength));
-            // write target checksum
-            writeIntLE(out, (int) checksum(target, targetLength));
-            // map ourselves to ram
-            out.flush();
-            // store patch length
-            long outLength = outFile.length();
-            ByteBuffer self = new RandomAccessFile(outFile, "rw").getChannel().map(FileChannel.MapMode.READ_ONLY, 0, outLength);
-            // write self checksum
-            writeIntLE(out, (int) checksum(self, outLength));
+            prepare();
+            time = PatchStats.lap(stats, PatchStats.Phase.INDEX, time);
+            long writing = (stats == null) ? 0 : stats.getNanos(PatchStats.Phase.WRITE);
+            if (parallelism > 1 && targetLength >= 2 * MIN_SEGMENT_SIZE) {
+                doPatchParallel(writer);
+            } else {
+                doPatch(writer, 0, targetLength);
+            }
+            if (stats != null) {
+                // time spent writing as commands were encoded is not diffing
+                writing = stats.getNanos(PatchStats.Phase.WRITE) - writing;
+                time = PatchStats.lap(stats, PatchStats.Phase.DIFF, time + writing);
+            }
+            // write the checksums, the writer adds its own
+            long sourceChecksum = sourceChecksum();
+            long targetChecksum = target.checksum(0, targetLength);
+            time = PatchStats.lap(stats, PatchStats.Phase.CHECKSUM, time);
+            writer.writeFooter(sourceChecksum, targetChecksum);
+            if (stats != null) {
+                stats.buffers(writer.bufferSize() + indexSize());
+                stats.sizes(sourceLength, targetLength, writer.written());
+            }
         } finally {
-            // close the streams
+            if (writer != null) {
+                writer.release();
+            }
+            closeStreams();
+        }
+        if (stats != null) {
+            stats.finish(System.nanoTime() - start);
+            metrics.created(stats);
+        }
+    }
+
+    /**
+     * Closes the files the creator opened. A channel given for the output is
+     * left open, as the caller owns it.
+     */
+    void closeStreams() throws IOException {
+        if (sourceFile != null) {
             sourceFile.close();
+        }
+        if (targetFile != null) {
             targetFile.close();
+        }
+        if (out != null) {
             out.close();
         }
     }
 
     /**
-     * Writes and integer to the specified output stream in it's little Endian
-     * form. This method does not & with 0xFF and should not need to.
+     * Differences segments of the target on a pool of threads, replaying the
+     * commands of each segment into the patch in order as they complete.
      */
-    private void writeIntLE(OutputStream out, int value) throws IOException {
-        out.write(value);
-        out.write(value >> 8);
-        out.write(value >> 16);
-        out.write(value >> 24);
+    private void doPatchParallel(OpSink ops) throws IOException {
+        long[] bounds = segments();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            List<Future<OpList>> segments = new ArrayList<Future<OpList>>();
+            for (int i = 0; i < bounds.length - 1; i++) {
+                final long start = bounds[i], end = bounds[i + 1];
+                segments.add(pool.submit(new Callable<OpList>() {
+                    @Override
+                    public OpList call() throws IOException {
+                        OpList segment = new OpList();
+                        doPatch(segment, start, end);
+                        return segment;
+                    }
+                }));
+            }
+            for (Future<OpList> segment : segments) {
+                segment.get().replay(ops);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted whilst creating patch");
+        } catch (ExecutionException ex) {
+            throw Shared.rethrow(ex);
+        } finally {
+            pool.shutdownNow();
+        }
     }
 
     /**
-     * Encode a single number as into it's variable length form and write it to
-     * the output stream.
+     * Splits the target into several segments per thread. Each split is moved
+     * forward, if possible, to a point where the target matches the source at
+     * the same offset, so that the read commands either side of it merge back
+     * together.
      */
-    protected final void encode(OutputStream out, long data) throws IOException {
-        while (true) {
-            long x = data & 0x7f;
-            data >>= 7;
-            if (data == 0) {
-                out.write((byte) (0x80 | x));
-                break;
+    private long[] segments() {
+        int count = (int) Math.min(parallelism * 4L, targetLength / MIN_SEGMENT_SIZE);
+        long[] bounds = new long[count + 1];
+        for (int i = 1; i < count; i++) {
+            long split = targetLength * i / count;
+            long limit = Math.min(Math.min(split + SEGMENT_ALIGN_WINDOW, sourceLength - 8), targetLength - 8);
+            for (long offset = split; offset < limit; offset++) {
+                if (source.getLong(offset) == target.getLong(offset)) {
+                    split = offset;
+                    break;
+                }
             }
-            out.write((byte) x);
-            data--;
+            bounds[i] = split;
         }
+        bounds[count] = targetLength;
+        return bounds;
+    }
+
+    /**
+     * Counts the number of equal bytes at the specified offsets of two
+     * buffers, up to the specified limit. Compares eight bytes at a time where
+     * possible, both buffers must use the same byte order.
+     */
+    protected static int matchLength(ByteBuffer a, int aOffset, ByteBuffer b, int bOffset, int limit) {
+        int length = 0;
+        while (length + 8 <= limit) {
+            long difference = a.getLong(aOffset + length) ^ b.getLong(bOffset + length);
+            if (difference != 0) {
+                return length + ((a.order() == ByteOrder.BIG_ENDIAN)
+                        ? Long.numberOfLeadingZeros(difference)
+                        : Long.numberOfTrailingZeros(difference)) / 8;
+            }
+            length += 8;
+        }
+        while (length < limit && a.get(aOffset + length) == b.get(bOffset + length)) {
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * Counts the number of equal bytes at the specified offsets of two
+     * segmented buffers, up to the specified limit.
+     */
+    protected static long matchLength(SegmentedBuffer a, long aOffset, SegmentedBuffer b, long bOffset, long limit) {
+        return SegmentedBuffer.matchLength(a, aOffset, b, bOffset, limit);
+    }
+
+    /**
+     * Returns the checksum of the source, computing it on first use so that it
+     * is only computed once when needed both to look up cached source data
+     * and for the patch footer.
+     */
+    protected final long sourceChecksum() {
+        if (sourceChecksum == -1) {
+            sourceChecksum = source.checksum(0, sourceLength);
+        }
+        return sourceChecksum;
+    }
+
+    /**
+     * Called once the files have been mapped and before any differencing, so
+     * that implementations may build any structures shared by all segments.
+     */
+    protected void prepare() throws IOException {
+    }
+
+    /**
+     * Returns the number of bytes held by the index built in
+     * {@link #prepare()}, for the patch metrics.
+     */
+    protected long indexSize() {
+        return 0;
     }
 
     /**
      * Method which the patch implementation must overwrite to generate the
-     * binary differences for the patch.
+     * binary differences for the target bytes from {@code start} up to
+     * {@code end}, passing commands to the sink in target order. Distinct
+     * segments of the target may be differenced concurrently, so any state
+     * must be kept local to the call.
      */
-    protected abstract void doPatch() throws IOException;
+    protected abstract void doPatch(OpSink ops, long start, long end) throws IOException;
 }
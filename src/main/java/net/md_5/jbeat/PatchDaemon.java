@@ -0,0 +1,540 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates, applies and verifies patches for {@link PatchClient}s connecting
+ * over the loopback interface, so that many small jobs share one long running
+ * and warmed up JVM rather than each starting their own. Source files are kept
+ * mapped and checksummed between requests, and block indexes of them are
+ * cached, so repeated work against the same source goes straight to
+ * differencing or applying. Requests run on a fixed pool of worker threads.
+ * <p> A cached source is mapped again when its length or modification time
+ * changes, so sources must be replaced rather than rewritten in place while
+ * the daemon runs. <p> Requests name files by path, which the daemon opens
+ * with its own permissions. Listening only on the loopback interface keeps out
+ * other machines but not other users of this one, so every request must
+ * also carry a random token which the daemon writes, when it starts, to a
+ * file only its owner may read. Clients of the same user read the token from
+ * that file, see {@link #tokenFile(int)}.
+ */
+public final class PatchDaemon implements Closeable {
+
+    /**
+     * Request to create a patch: style, source, target and output paths.
+     */
+    static final int CREATE = 1;
+    /**
+     * Request to apply a patch: patch, source and target paths.
+     */
+    static final int APPLY = 2;
+    /**
+     * Request to verify a patch: patch and source paths.
+     */
+    static final int VERIFY = 3;
+    /**
+     * Number of bytes of the token each request starts with.
+     */
+    static final int TOKEN_LENGTH = 32;
+    /**
+     * Default number of bytes of sources, and separately of indexes, kept.
+     */
+    public static final long DEFAULT_CACHE_BUDGET = 1L << 30;
+    /**
+     * Socket on which clients connect.
+     */
+    private final ServerSocket server;
+    /**
+     * Token which each request must carry.
+     */
+    private final byte[] token;
+    /**
+     * File to which the token is written, deleted when the daemon is closed.
+     */
+    private final File tokenFile;
+    /**
+     * Threads on which requests are carried out.
+     */
+    private final ExecutorService workers;
+    /**
+     * Threads reading requests from, and answering, each client.
+     */
+    private final ExecutorService connections;
+    /**
+     * Sockets of the connected clients, closed with the daemon.
+     */
+    private final Set<Socket> clients = new HashSet<Socket>();
+    /**
+     * Mapped sources by canonical file, least recently used first.
+     */
+    private final Map<File, Source> sources = new LinkedHashMap<File, Source>(16, 0.75f, true);
+    /**
+     * Number of bytes of sources to keep mapped.
+     */
+    private final long budget;
+    /**
+     * Number of bytes of sources mapped.
+     */
+    private long size;
+    /**
+     * Block indexes of the sources.
+     */
+    private final SourceIndexCache indexes;
+    /**
+     * Thread accepting clients, or null until started.
+     */
+    private Thread acceptor;
+
+    public PatchDaemon(int port) throws IOException {
+        this(port, Runtime.getRuntime().availableProcessors(), DEFAULT_CACHE_BUDGET);
+    }
+
+    /**
+     * Creates a daemon listening on a port of the loopback interface, writing
+     * its token to {@link #tokenFile(int)} of the port listened on.
+     *
+     * @see #PatchDaemon(int, int, long, File)
+     */
+    public PatchDaemon(int port, int threads, long budget) throws IOException {
+        this(port, threads, budget, null);
+    }
+
+    /**
+     * Creates a daemon listening on a port of the loopback interface. Clients
+     * are only accepted once {@link #start()} is called.
+     *
+     * @param port on which to listen, or 0 for any free port
+     * @param threads number of requests carried out at once
+     * @param budget number of bytes of sources to keep mapped, and of indexes
+     * to keep in memory, the most recently used of each is always kept
+     * @param tokenFile to which the token is written, replacing any existing
+     * file, or null for {@link #tokenFile(int)} of the port listened on
+     * @throws IOException when the port cannot be bound or the token cannot be
+     * written
+     */
+    public PatchDaemon(int port, int threads, long budget, File tokenFile) throws IOException {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Threads must be at least 1");
+        }
+        this.server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        try {
+            this.token = new byte[TOKEN_LENGTH];
+            new SecureRandom().nextBytes(token);
+            this.tokenFile = (tokenFile != null) ? tokenFile : tokenFile(server.getLocalPort());
+            writeToken(this.tokenFile, token);
+        } catch (IOException ex) {
+            server.close();
+            throw ex;
+        }
+        this.workers = Executors.newFixedThreadPool(threads, threads("jbeat daemon worker"));
+        this.connections = Executors.newCachedThreadPool(threads("jbeat daemon connection"));
+        this.budget = budget;
+        this.indexes = new SourceIndexCache(null, budget);
+    }
+
+    private static ThreadFactory threads(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Returns the port on which the daemon listens.
+     */
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * Returns the file to which the token of the daemon was written.
+     */
+    public File getTokenFile() {
+        return tokenFile;
+    }
+
+    /**
+     * Returns the file to which a daemon listening on the specified port
+     * writes its token by default, within a directory of the user's home
+     * which only they may access.
+     */
+    public static File tokenFile(int port) {
+        return new File(new File(System.getProperty("user.home"), ".jbeat"), "daemon-" + port + ".token");
+    }
+
+    /**
+     * Writes the token in hexadecimal to a newly created file which only its
+     * owner may read or write, creating its directory, likewise private, if
+     * needed.
+     */
+    private static void writeToken(File file, byte[] token) throws IOException {
+        Path path = file.getAbsoluteFile().toPath();
+        boolean posix = path.getFileSystem().supportedFileAttributeViews().contains("posix");
+        if (!Files.isDirectory(path.getParent())) {
+            if (posix) {
+                Files.createDirectories(path.getParent(), PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+            } else {
+                Files.createDirectories(path.getParent());
+            }
+        }
+        // never write the token into a file someone else may already have open
+        Files.deleteIfExists(path);
+        try {
+            if (posix) {
+                Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+            } else {
+                Files.createFile(path);
+                File created = path.toFile();
+                if (!created.setReadable(false, false) || !created.setReadable(true, true)
+                        || !created.setWritable(false, false) || !created.setWritable(true, true)) {
+                    throw new IOException("Could not make the token file \"" + file + "\" private!");
+                }
+            }
+        } catch (FileAlreadyExistsException ex) {
+            throw new IOException("Token file \"" + file + "\" was created by someone else!", ex);
+        }
+        StringBuilder hex = new StringBuilder(token.length * 2);
+        for (byte b : token) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        Files.write(path, hex.toString().getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Reads a token written by a daemon.
+     *
+     * @throws IOException when the file cannot be read or does not hold a
+     * token
+     */
+    static byte[] readToken(File file) throws IOException {
+        String hex = new String(Files.readAllBytes(file.toPath()), StandardCharsets.US_ASCII).trim();
+        if (hex.length() != TOKEN_LENGTH * 2) {
+            throw new IOException("Token file \"" + file + "\" does not hold a daemon token!");
+        }
+        byte[] token = new byte[TOKEN_LENGTH];
+        for (int i = 0; i < token.length; i++) {
+            int high = Character.digit(hex.charAt(i * 2), 16), low = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if (high == -1 || low == -1) {
+                throw new IOException("Token file \"" + file + "\" does not hold a daemon token!");
+            }
+            token[i] = (byte) ((high << 4) | low);
+        }
+        return token;
+    }
+
+    /**
+     * Starts accepting clients on a background thread, which keeps the JVM
+     * alive until the daemon is closed.
+     */
+    public synchronized void start() {
+        if (acceptor != null) {
+            throw new IllegalStateException("Daemon has already been started");
+        }
+        acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "jbeat daemon");
+        acceptor.start();
+    }
+
+    private void accept() {
+        while (!server.isClosed()) {
+            final Socket socket;
+            try {
+                socket = server.accept();
+            } catch (IOException ex) {
+                // closed, or the client went away before being accepted
+                continue;
+            }
+            synchronized (clients) {
+                clients.add(socket);
+            }
+            connections.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        serve(socket);
+                    } catch (IOException ex) {
+                        // the client went away
+                    } finally {
+                        synchronized (clients) {
+                            clients.remove(socket);
+                        }
+                        try {
+                            socket.close();
+                        } catch (IOException ex) {
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Answers the requests of a client until it disconnects. Each request is
+     * the token of the daemon and a request type followed by its arguments as
+     * modified UTF-8 strings, and each answer is whether it succeeded followed
+     * by a result or an error message. A request with the wrong token is
+     * refused without reading any further, and the client disconnected.
+     */
+    private void serve(Socket socket) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        byte[] presented = new byte[TOKEN_LENGTH];
+        while (true) {
+            try {
+                in.readFully(presented);
+            } catch (EOFException ex) {
+                return;
+            }
+            if (!MessageDigest.isEqual(presented, token)) {
+                out.writeBoolean(false);
+                out.writeUTF("Request does not carry the token of the daemon!");
+                out.flush();
+                return;
+            }
+            final int request = in.readUnsignedByte();
+            final String[] arguments = new String[in.readUnsignedByte()];
+            for (int i = 0; i < arguments.length; i++) {
+                arguments[i] = in.readUTF();
+            }
+            Future<String> result = workers.submit(new Callable<String>() {
+                @Override
+                public String call() throws IOException {
+                    return handle(request, arguments);
+                }
+            });
+            boolean ok = false;
+            String message;
+            try {
+                message = result.get();
+                ok = true;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted whilst handling a request");
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                message = (cause.getMessage() != null) ? cause.getMessage() : cause.toString();
+            }
+            out.writeBoolean(ok);
+            out.writeUTF(message);
+            out.flush();
+        }
+    }
+
+    /**
+     * Carries out a single request.
+     *
+     * @return the result sent back to the client
+     */
+    private String handle(int request, String[] arguments) throws IOException {
+        switch (request) {
+            case CREATE: {
+                check(arguments, 4);
+                BatchCreator.Style style = BatchCreator.Style.valueOf(arguments[0]);
+                File source = new File(arguments[1]), output = new File(arguments[3]);
+                Source cached = source(source);
+                PatchCreator creator = BatchCreator.creator(style, source, new File(arguments[2]), output);
+                if (creator instanceof BlockCreator) {
+                    ((BlockCreator) creator).setIndexCache(indexes);
+                }
+                creator.setSource(cached.data, cached.length, cached.checksum);
+                creator.create();
+                return Long.toString(output.length());
+            }
+            case APPLY: {
+                check(arguments, 3);
+                File source = new File(arguments[1]);
+                Source cached = source(source);
+                Patcher patcher = new Patcher(new File(arguments[0]), source, new File(arguments[2]));
+                patcher.setSource(cached.data, cached.checksum);
+                patcher.patch();
+                return "";
+            }
+            case VERIFY: {
+                check(arguments, 2);
+                File source = new File(arguments[1]);
+                Source cached = source(source);
+                Patcher.verify(new File(arguments[0]), source, cached.data, cached.checksum);
+                return "";
+            }
+            default:
+                throw new IOException("Unknown request " + request + "!");
+        }
+    }
+
+    private static void check(String[] arguments, int count) throws IOException {
+        if (arguments.length != count) {
+            throw new IOException("Request needs " + count + " arguments!");
+        }
+    }
+
+    /**
+     * Returns a source file mapped and checksummed, from the cache unless it
+     * has changed since it was cached. Sources are mapped and checksummed
+     * outside the lock, so that a large source does not hold up requests for
+     * others.
+     */
+    private Source source(File file) throws IOException {
+        File key = file.getCanonicalFile();
+        long length = key.length(), modified = key.lastModified();
+        synchronized (sources) {
+            Source source = sources.get(key);
+            if (source != null && source.length == length && source.modified == modified) {
+                return source;
+            }
+        }
+        RandomAccessFile in = new RandomAccessFile(key, "r");
+        SegmentedBuffer data;
+        try {
+            length = in.length();
+            data = SegmentedBuffer.map(in.getChannel(), FileChannel.MapMode.READ_ONLY, length);
+        } finally {
+            in.close();
+        }
+        Source source = new Source(length, modified, data, data.checksum(0, length));
+        synchronized (sources) {
+            Source old = sources.put(key, source);
+            if (old != null) {
+                size -= old.length;
+            }
+            size += length;
+            // evict the least recently used, but always keep the newest
+            Iterator<Source> it = sources.values().iterator();
+            while (size > budget && sources.size() > 1) {
+                size -= it.next().length;
+                it.remove();
+            }
+        }
+        return source;
+    }
+
+    /**
+     * Stops accepting clients, disconnects those connected, abandons any
+     * queued requests and deletes the token file.
+     */
+    @Override
+    public void close() throws IOException {
+        server.close();
+        Files.deleteIfExists(tokenFile.toPath());
+        synchronized (clients) {
+            for (Socket socket : clients) {
+                socket.close();
+            }
+        }
+        workers.shutdownNow();
+        connections.shutdownNow();
+        synchronized (sources) {
+            sources.clear();
+            size = 0;
+        }
+    }
+
+    /**
+     * A source file mapped into memory and checksummed.
+     */
+    private static final class Source {
+
+        private final long length, modified;
+        private final SegmentedBuffer data;
+        private final long checksum;
+
+        Source(long length, long modified, SegmentedBuffer data, long checksum) {
+            this.length = length;
+            this.modified = modified;
+            this.data = data;
+            this.checksum = checksum;
+        }
+    }
+
+    public static void main(final String[] arguments) throws IOException {
+        if (arguments == null || arguments.length < 1 || arguments.length > 3) {//Check for valid arguments
+            System.out.println("You must have valid arguments!");
+            System.out.println("The first argument, should be the port on which to listen for clients on the loopback interface, or 0 for any free port.");
+            System.out.println("The optional second argument, should be the number of requests to carry out at once.");
+            System.out.println("The optional third argument, should be the number of megabytes of sources to keep mapped.");
+            return;
+        }
+        int port = Integer.parseInt(arguments[0]);
+        int threads = (arguments.length > 1) ? Integer.parseInt(arguments[1]) : Runtime.getRuntime().availableProcessors();
+        long budget = (arguments.length > 2) ? Long.parseLong(arguments[2]) << 20 : DEFAULT_CACHE_BUDGET;
+        final PatchDaemon daemon = new PatchDaemon(port, threads, budget);
+        // remove the token file when stopped
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    daemon.close();
+                } catch (IOException ex) {
+                }
+            }
+        }, "jbeat daemon shutdown"));
+        daemon.start();
+        System.out.println("Listening on port " + daemon.getPort() + ", with the token in " + daemon.getTokenFile());
+    }
+}
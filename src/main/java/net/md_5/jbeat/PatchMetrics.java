@@ -0,0 +1,70 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+/**
+ * Listener told about every patch created or applied, for monitoring. Nothing
+ * is measured unless a listener is attached, and even then the counting is
+ * cheap enough to leave on in production.
+ */
+public interface PatchMetrics {
+
+    /**
+     * Called once a patch has been created successfully.
+     *
+     * @param stats figures gathered while creating the patch
+     */
+    void created(PatchStats stats);
+
+    /**
+     * Called once a patch has been applied and verified successfully.
+     *
+     * @param stats figures gathered while applying the patch
+     */
+    void applied(PatchStats stats);
+
+    /**
+     * Returns a listener which records each patch as a Java Flight Recorder
+     * event, named {@code net.md_5.jbeat.PatchCreated} or
+     * {@code net.md_5.jbeat.PatchApplied}, or null if the running JVM has no
+     * flight recorder. The events are only in the jar when it was built on JDK
+     * 11 or later, otherwise null is always returned.
+     */
+    static PatchMetrics flightRecorder() {
+        try {
+            Class.forName("jdk.jfr.FlightRecorder");
+            // only load the events once we know they can be
+            return (PatchMetrics) Class.forName("net.md_5.jbeat.JfrMetrics").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException ex) {
+            return null;
+        } catch (LinkageError ex) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,503 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Reads beat version 1 patches one command at a time. The reader is a cursor:
+ * {@link #next()} decodes the next command into primitive fields, resolving
+ * the relative offsets of copies to absolute ones, without allocating. Patches
+ * may be read from a buffer, such as a mapped file, or from a stream through
+ * an internal window. Numbers are decoded eight bytes at a time where
+ * possible. <p> A typical read looks like:
+ * <pre>
+ * reader.readHeader();
+ * while (reader.next()) {
+ *     // inspect getMode(), getLength(), getOffset()
+ * }
+ * reader.readFooter();
+ * </pre>
+ */
+public final class PatchReader {
+
+    /**
+     * Mode of a command reading bytes from the source at the output offset.
+     */
+    public static final int SOURCE_READ = (int) Shared.SOURCE_READ;
+    /**
+     * Mode of a command reading literal bytes from the patch.
+     */
+    public static final int TARGET_READ = (int) Shared.TARGET_READ;
+    /**
+     * Mode of a command copying bytes from elsewhere in the source.
+     */
+    public static final int SOURCE_COPY = (int) Shared.SOURCE_COPY;
+    /**
+     * Mode of a command copying bytes from earlier in the target.
+     */
+    public static final int TARGET_COPY = (int) Shared.TARGET_COPY;
+    /**
+     * Size of the window used when reading from a stream.
+     */
+    static final int WINDOW_SIZE = 1 << 16;
+    /**
+     * Marks the terminating byte of a variable length number.
+     */
+    private static final long STOP_BITS = 0x8080808080808080L;
+    /**
+     * Amount added to a number for every byte before its terminating byte.
+     */
+    private static final long[] BIAS = new long[8];
+
+    static {
+        for (int i = 1; i < BIAS.length; i++) {
+            BIAS[i] = BIAS[i - 1] + (1L << (7 * i));
+        }
+    }
+    /**
+     * The channel being read from, or null when reading from a buffer.
+     */
+    private final ReadableByteChannel in;
+    /**
+     * Little endian view of the patch data, the whole patch when reading from
+     * a buffer, otherwise a window of unread data.
+     */
+    private final ByteBuffer window;
+    /**
+     * Running checksum of the stream, updated up to {@link #checked}.
+     */
+    private final CRC32 checksum;
+    private int checked;
+    /**
+     * Number of bytes of the stream consumed before the start of the window.
+     */
+    private long discarded;
+    private long sourceSize, targetSize;
+    private String metadata;
+    private int mode;
+    private long length, offset, outputOffset;
+    /**
+     * Literal bytes of the current command not yet read.
+     */
+    private long literal;
+    private long sourceRelativeOffset, targetRelativeOffset;
+    private long sourceChecksum, targetChecksum, patchChecksum, computedPatchChecksum;
+
+    /**
+     * Creates a reader over a patch held in a buffer, from its position to its
+     * limit.
+     */
+    public PatchReader(ByteBuffer patch) {
+        this.in = null;
+        this.window = patch.slice().order(ByteOrder.LITTLE_ENDIAN);
+        this.checksum = null;
+    }
+
+    /**
+     * Creates a reader over a patch read from a channel.
+     */
+    public PatchReader(ReadableByteChannel in) {
+        this(in, ByteBuffer.allocate(WINDOW_SIZE));
+    }
+
+    /**
+     * Creates a reader over a patch read from a channel through the specified
+     * window, which must hold at least eight bytes and is owned by the reader
+     * until it is done with.
+     */
+    PatchReader(ReadableByteChannel in, ByteBuffer window) {
+        this.in = in;
+        this.window = window.order(ByteOrder.LITTLE_ENDIAN);
+        this.window.clear();
+        this.window.flip();
+        this.checksum = new CRC32();
+    }
+
+    /**
+     * Creates a reader over a patch read from a stream.
+     */
+    public PatchReader(InputStream in) {
+        this(Channels.newChannel(in));
+    }
+
+    /**
+     * Creates a reader over {@code length} bytes of a segmented buffer
+     * starting at the specified offset. The reader needs a single buffer, so
+     * a range too large for one is read through copies of a segment at a time
+     * instead.
+     */
+    static PatchReader of(final SegmentedBuffer patch, final long offset, final long length) {
+        if (length <= Integer.MAX_VALUE) {
+            ByteBuffer view = patch.view(offset, length);
+            if (view.remaining() == length) {
+                return new PatchReader(view);
+            }
+            if (patch.size() <= Integer.MAX_VALUE) {
+                ByteBuffer whole = patch.buffer();
+                whole.limit((int) (offset + length));
+                whole.position((int) offset);
+                return new PatchReader(whole);
+            }
+        }
+        return new PatchReader(new ReadableByteChannel() {
+            private long position = offset;
+
+            @Override
+            public int read(ByteBuffer dst) {
+                long end = offset + length;
+                if (position == end) {
+                    return -1;
+                }
+                ByteBuffer data = patch.view(position, Math.min(dst.remaining(), end - position));
+                int count = data.remaining();
+                dst.put(data);
+                position += count;
+                return count;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+    }
+
+    /**
+     * Reads and checks the patch header.
+     */
+    public void readHeader() throws IOException {
+        for (char c : Shared.MAGIC_HEADER) {
+            if (readByte() != c) {
+                throw new IOException("Patch file does not contain correct BPS header!");
+            }
+        }
+        sourceSize = readNumber();
+        targetSize = readNumber();
+        int metadataLength = (int) readNumber();
+        if (metadataLength != 0) {
+            ByteBuffer data = ByteBuffer.allocate(metadataLength);
+            read(data);
+            data.flip();
+            metadata = Shared.CHARSET.decode(data).toString();
+        }
+    }
+
+    /**
+     * Decodes the next command, skipping any unread literal bytes of the
+     * current one.
+     *
+     * @return false once every command has been read
+     */
+    public boolean next() throws IOException {
+        skipLiteral();
+        outputOffset += length;
+        if (outputOffset >= targetSize) {
+            length = 0;
+            return false;
+        }
+        long data = readNumber();
+        mode = (int) (data & 3);
+        length = (data >>> 2) + 1;
+        if (length > targetSize - outputOffset) {
+            throw new IOException("Patch command runs past the end of the target!");
+        }
+        if (mode == SOURCE_READ) {
+            offset = outputOffset;
+        } else if (mode == TARGET_READ) {
+            offset = outputOffset;
+            literal = length;
+        } else {
+            data = readNumber();
+            long relative = (((data & 1) != 0) ? -1 : 1) * (data >>> 1);
+            if (mode == SOURCE_COPY) {
+                offset = sourceRelativeOffset += relative;
+                sourceRelativeOffset += length;
+            } else {
+                offset = targetRelativeOffset += relative;
+                targetRelativeOffset += length;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copies literal bytes of the current target read command into the
+     * buffer, as many as both have room for.
+     *
+     * @return the number of bytes copied
+     */
+    public int readLiteral(ByteBuffer into) throws IOException {
+        int count = (int) Math.min(literal, into.remaining());
+        ByteBuffer limited = into.duplicate();
+        limited.limit(limited.position() + count);
+        read(limited);
+        into.position(limited.position());
+        literal -= count;
+        return count;
+    }
+
+    private void skipLiteral() throws IOException {
+        while (literal != 0) {
+            if (!window.hasRemaining() && !fill(1)) {
+                throw new EOFException("Unexpected end of patch!");
+            }
+            int skip = (int) Math.min(literal, window.remaining());
+            window.position(window.position() + skip);
+            literal -= skip;
+        }
+    }
+
+    /**
+     * Reads the checksums ending the patch. Must be called once every command
+     * has been read.
+     */
+    public void readFooter() throws IOException {
+        if (next()) {
+            throw new IllegalStateException("Not every command has been read");
+        }
+        sourceChecksum = readInt();
+        targetChecksum = readInt();
+        // the patch checksum covers everything before it
+        if (in == null) {
+            computedPatchChecksum = Shared.checksum(window, 0, window.position());
+        } else {
+            updateChecksum();
+            computedPatchChecksum = checksum.getValue();
+        }
+        patchChecksum = readInt();
+    }
+
+    public long getSourceSize() {
+        return sourceSize;
+    }
+
+    public long getTargetSize() {
+        return targetSize;
+    }
+
+    /**
+     * Returns the metadata of the patch, or null if it has none.
+     */
+    public String getMetadata() {
+        return metadata;
+    }
+
+    /**
+     * Returns the mode of the current command, one of {@link #SOURCE_READ},
+     * {@link #TARGET_READ}, {@link #SOURCE_COPY} or {@link #TARGET_COPY}.
+     */
+    public int getMode() {
+        return mode;
+    }
+
+    /**
+     * Returns the number of bytes the current command outputs.
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Returns the absolute offset the current command copies from, within the
+     * source for source commands and within the target for target copies.
+     * Target reads return the output offset.
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * Returns the target offset at which the current command starts.
+     */
+    public long getOutputOffset() {
+        return outputOffset;
+    }
+
+    public long getSourceChecksum() {
+        return sourceChecksum;
+    }
+
+    public long getTargetChecksum() {
+        return targetChecksum;
+    }
+
+    /**
+     * Returns the patch checksum stored in the footer.
+     */
+    public long getPatchChecksum() {
+        return patchChecksum;
+    }
+
+    /**
+     * Returns the checksum of the patch data actually read, which should
+     * equal {@link #getPatchChecksum()}.
+     */
+    public long getComputedPatchChecksum() {
+        return computedPatchChecksum;
+    }
+
+    /**
+     * Returns the number of bytes of the patch consumed so far, which while on
+     * a target read command is the offset of its unread literal bytes.
+     */
+    long consumed() {
+        return discarded + window.position();
+    }
+
+    /**
+     * Reads a single variable length number. When eight bytes are available
+     * they are loaded as one word, the terminating byte is found from the stop
+     * bits, and the seven bit groups before it are packed together without a
+     * loop.
+     */
+    long readNumber() throws IOException {
+        if (window.remaining() >= 8 || fill(8)) {
+            long word = window.getLong(window.position());
+            long stops = word & STOP_BITS;
+            if (stops != 0) {
+                int last = Long.numberOfTrailingZeros(stops) >>> 3;
+                long x = word & ~STOP_BITS;
+                if (last < 7) {
+                    x &= (1L << ((last + 1) << 3)) - 1;
+                }
+                x = ((x & 0x7f007f007f007f00L) >>> 1) | (x & 0x007f007f007f007fL);
+                x = ((x & 0x3fff00003fff0000L) >>> 2) | (x & 0x00003fff00003fffL);
+                x = ((x & 0x0fffffff00000000L) >>> 4) | (x & 0x000000000fffffffL);
+                window.position(window.position() + last + 1);
+                return x + BIAS[last];
+            }
+        }
+        long data = 0, shift = 1;
+        while (true) {
+            int x = readByte();
+            data += (x & 0x7F) * shift;
+            if ((x & 0x80) != 0x00) {
+                break;
+            }
+            shift <<= 7;
+            data += shift;
+        }
+        return data;
+    }
+
+    private int readByte() throws IOException {
+        if (!window.hasRemaining() && !fill(1)) {
+            throw new EOFException("Unexpected end of patch!");
+        }
+        return window.get() & 0xFF;
+    }
+
+    private long readInt() throws IOException {
+        if (window.remaining() < 4 && !fill(4)) {
+            throw new EOFException("Unexpected end of patch!");
+        }
+        return window.getInt() & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Reads bytes into the remaining space of the buffer. Large reads from a
+     * stream bypass the window.
+     */
+    private void read(ByteBuffer into) throws IOException {
+        while (into.hasRemaining()) {
+            if (window.hasRemaining()) {
+                ByteBuffer data = window.duplicate();
+                data.limit(data.position() + Math.min(data.remaining(), into.remaining()));
+                into.put(data);
+                window.position(data.position());
+            } else if (in != null && into.remaining() >= WINDOW_SIZE) {
+                updateChecksum();
+                discarded += window.position();
+                window.clear();
+                window.flip();
+                checked = 0;
+                ByteBuffer data = into.duplicate();
+                if (in.read(data) == -1) {
+                    throw new EOFException("Unexpected end of patch!");
+                }
+                data.flip();
+                data.position(into.position());
+                discarded += data.remaining();
+                checksum.update(data);
+                into.position(data.limit());
+            } else if (!fill(1)) {
+                throw new EOFException("Unexpected end of patch!");
+            }
+        }
+    }
+
+    /**
+     * Tries to make at least the specified number of bytes available in the
+     * window, returning false if the patch ends first.
+     */
+    private boolean fill(int count) throws IOException {
+        if (in == null) {
+            return window.remaining() >= count;
+        }
+        updateChecksum();
+        discarded += window.position();
+        window.compact();
+        checked = 0;
+        try {
+            while (window.position() < count) {
+                if (in.read(window) == -1) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            window.flip();
+        }
+    }
+
+    /**
+     * Adds the bytes consumed from the window so far to the stream checksum.
+     */
+    private void updateChecksum() {
+        if (window.position() > checked) {
+            ByteBuffer consumed = window.duplicate();
+            consumed.limit(consumed.position());
+            consumed.position(checked);
+            checksum.update(consumed);
+            checked = window.position();
+        }
+    }
+}
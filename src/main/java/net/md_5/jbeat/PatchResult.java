@@ -0,0 +1,75 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+/**
+ * Outcome of applying a patch through {@link PatchService}.
+ */
+public final class PatchResult {
+
+    /**
+     * Length of the original file.
+     */
+    private final long sourceSize;
+    /**
+     * Length of the patched file.
+     */
+    private final long targetSize;
+    /**
+     * UTF-8 beat metadata, or null if the patch has none.
+     */
+    private final String metadata;
+    /**
+     * CRC32 of the patched file, which matched the patch.
+     */
+    private final long targetChecksum;
+
+    PatchResult(long sourceSize, long targetSize, String metadata, long targetChecksum) {
+        this.sourceSize = sourceSize;
+        this.targetSize = targetSize;
+        this.metadata = metadata;
+        this.targetChecksum = targetChecksum;
+    }
+
+    public long getSourceSize() {
+        return sourceSize;
+    }
+
+    public long getTargetSize() {
+        return targetSize;
+    }
+
+    public String getMetadata() {
+        return metadata;
+    }
+
+    public long getTargetChecksum() {
+        return targetChecksum;
+    }
+}
@@ -0,0 +1,406 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+/**
+ * Applies patches asynchronously between channels. Unlike {@link PatcherIO},
+ * neither the source nor the target is held in memory: the source is read
+ * where commands refer to it, and target copies read back what has already
+ * been written to the target, so each patch needs only a couple of small
+ * buffers. The channels are left open, and their positions are moved, as the
+ * caller owns them. <p> The memory held by the buffers of the patches being
+ * applied at once is capped, patches waiting for room before they start, so
+ * that a flood of requests applies backpressure rather than exhausting
+ * resources. By default
+ * each patch runs on its own virtual thread where the JDK supports them, and
+ * otherwise on a pool of daemon threads.
+ */
+public final class PatchService implements Closeable {
+
+    /**
+     * Size of the buffer through which target bytes are written.
+     */
+    private static final int BUFFER_SIZE = PatcherIO.BUFFER_SIZE;
+    /**
+     * Bytes of buffers held by each patch: the window of the patch reader,
+     * the target buffer and the buffer through which the source is
+     * checksummed.
+     */
+    static final int PATCH_BUFFER_SIZE = PatchReader.WINDOW_SIZE + 2 * BUFFER_SIZE;
+    /**
+     * Executor on which patches are applied.
+     */
+    private final Executor executor;
+    /**
+     * Whether the executor was created by, and so is shut down with, this
+     * service.
+     */
+    private final boolean ownsExecutor;
+    /**
+     * Permits for each byte of buffers which may be held.
+     */
+    private final Semaphore inFlight;
+    /**
+     * Permits each patch takes, no more than the cap so that a patch may still
+     * run on its own.
+     */
+    private final int permits;
+
+    /**
+     * Creates a service running on virtual threads where available.
+     *
+     * @param maxBufferedBytes most bytes of buffers held by the patches being
+     * applied at once, each holding {@link #PATCH_BUFFER_SIZE}
+     */
+    public PatchService(long maxBufferedBytes) {
+        this(defaultExecutor(), maxBufferedBytes, true);
+    }
+
+    /**
+     * Creates a service running on the specified executor, which is not shut
+     * down when the service is closed.
+     *
+     * @param executor on which patches are applied
+     * @param maxBufferedBytes most bytes of buffers held by the patches being
+     * applied at once, each holding {@link #PATCH_BUFFER_SIZE}
+     */
+    public PatchService(Executor executor, long maxBufferedBytes) {
+        this(executor, maxBufferedBytes, false);
+    }
+
+    private PatchService(Executor executor, long maxBufferedBytes, boolean ownsExecutor) {
+        if (maxBufferedBytes < 1) {
+            throw new IllegalArgumentException("Buffered bytes must be at least 1");
+        }
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+        int max = (int) Math.min(maxBufferedBytes, Integer.MAX_VALUE);
+        this.permits = Math.min(PATCH_BUFFER_SIZE, max);
+        this.inFlight = new Semaphore(max, true);
+    }
+
+    /**
+     * Returns an executor starting a virtual thread per task, looked up
+     * reflectively so that older JDKs fall back to a cached pool of daemon
+     * threads.
+     */
+    private static Executor defaultExecutor() {
+        try {
+            return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            return Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task, "jbeat patch service");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    /**
+     * Applies a patch on the executor of the service. See
+     * {@link #apply(ReadableByteChannel, SeekableByteChannel, SeekableByteChannel)}.
+     *
+     * @return a future completing with the result once the patch has been
+     * applied and verified, or exceptionally with the {@link IOException}
+     * which stopped it
+     */
+    public CompletableFuture<PatchResult> applyAsync(final ReadableByteChannel patch, final SeekableByteChannel source, final SeekableByteChannel target) {
+        return CompletableFuture.supplyAsync(new Supplier<PatchResult>() {
+            @Override
+            public PatchResult get() {
+                try {
+                    return apply(patch, source, target);
+                } catch (IOException ex) {
+                    throw new CompletionException(ex);
+                }
+            }
+        }, executor);
+    }
+
+    /**
+     * Applies a patch on the calling thread, once there is room for its
+     * buffers within the cap.
+     *
+     * @param patch the beat format patch, read from its current position
+     * @param source original data from which the patch was created, read at
+     * the offsets commands refer to
+     * @param target to which the patched data is written from offset 0, which
+     * must also be readable as target copies read it back
+     */
+    public PatchResult apply(ReadableByteChannel patch, SeekableByteChannel source, SeekableByteChannel target) throws IOException {
+        try {
+            inFlight.acquire(permits);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted whilst waiting to patch");
+        }
+        try {
+            PatchReader reader = new PatchReader(patch);
+            reader.readHeader();
+            final long sourceSize = reader.getSourceSize();
+            final long targetSize = reader.getTargetSize();
+            if (source.size() < sourceSize) {
+                throw new IOException("Source file is smaller than the patch expects!");
+            }
+
+            Output output = new Output(target);
+            while (reader.next()) {
+                long length = reader.getLength();
+                long offset = reader.getOffset();
+                int mode = reader.getMode();
+                if (mode == PatchReader.SOURCE_READ || mode == PatchReader.SOURCE_COPY) {
+                    if (offset < 0 || offset + length > sourceSize) {
+                        throw new IOException("Patch command refers to data outside of its file!");
+                    }
+                    output.copy(source, offset, length);
+                } else if (mode == PatchReader.TARGET_READ) {
+                    output.literal(reader);
+                } else {
+                    output.targetCopy(offset, length);
+                }
+            }
+            output.flush();
+            reader.readFooter();
+
+            // checksum of the source, read through as it may not all be used
+            if (checksum(source, sourceSize) != reader.getSourceChecksum()) {
+                throw new IOException("Source checksum does not match!");
+            }
+
+            // checksum of the target
+            if (output.getChecksum() != reader.getTargetChecksum()) {
+                throw new IOException("Target checksum does not match!");
+            }
+
+            // checksum of the patch itself
+            if (reader.getComputedPatchChecksum() != reader.getPatchChecksum()) {
+                throw new IOException("Patch checksum does not match!");
+            }
+            return new PatchResult(sourceSize, targetSize, reader.getMetadata(), reader.getTargetChecksum());
+        } finally {
+            inFlight.release(permits);
+        }
+    }
+
+    /**
+     * Shuts down the executor if it was created by this service. Patches
+     * already started are left to finish.
+     */
+    @Override
+    public void close() {
+        if (ownsExecutor) {
+            ((ExecutorService) executor).shutdown();
+        }
+    }
+
+    private static long checksum(SeekableByteChannel channel, long length) throws IOException {
+        CRC32 checksum = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, Math.max(length, 1)));
+        channel.position(0);
+        while (length != 0) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), length));
+            if (channel.read(buffer) == -1) {
+                throw new EOFException("Unexpected end of source!");
+            }
+            buffer.flip();
+            length -= buffer.remaining();
+            checksum.update(buffer);
+        }
+        return checksum.getValue();
+    }
+
+    /**
+     * Reads exactly the remaining bytes of the buffer from the channel,
+     * starting at the specified position.
+     */
+    private static void read(SeekableByteChannel channel, long position, ByteBuffer into) throws IOException {
+        channel.position(position);
+        while (into.hasRemaining()) {
+            if (channel.read(into) == -1) {
+                throw new EOFException("Unexpected end of channel!");
+            }
+        }
+    }
+
+    /**
+     * Buffered, checksummed writer of the target, which reads back what it
+     * has written for target copies. Also used by {@link PatcherIO} to stage
+     * large targets, passing every byte on to a second channel as written.
+     */
+    static final class Output {
+
+        private final SeekableByteChannel target;
+        /**
+         * Channel to which everything written is also passed, or null.
+         */
+        private final WritableByteChannel copy;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private final CRC32 checksum = new CRC32();
+        /**
+         * Number of bytes written to the channel.
+         */
+        private long written;
+
+        Output(SeekableByteChannel target) {
+            this(target, null);
+        }
+
+        Output(SeekableByteChannel target, WritableByteChannel copy) {
+            this.target = target;
+            this.copy = copy;
+        }
+
+        long getChecksum() {
+            return checksum.getValue();
+        }
+
+        void put(ByteBuffer data) throws IOException {
+            while (data.hasRemaining()) {
+                if (!buffer.hasRemaining()) {
+                    flush();
+                }
+                ByteBuffer chunk = data.duplicate();
+                chunk.limit(chunk.position() + Math.min(chunk.remaining(), buffer.remaining()));
+                buffer.put(chunk);
+                data.position(chunk.position());
+            }
+        }
+
+        void copy(SeekableByteChannel source, long offset, long length) throws IOException {
+            while (length != 0) {
+                if (!buffer.hasRemaining()) {
+                    flush();
+                }
+                ByteBuffer into = buffer.duplicate();
+                into.limit((int) Math.min(buffer.limit(), buffer.position() + length));
+                int count = into.remaining();
+                read(source, offset, into);
+                buffer.position(into.position());
+                offset += count;
+                length -= count;
+            }
+        }
+
+        void literal(PatchReader reader) throws IOException {
+            while (true) {
+                if (!buffer.hasRemaining()) {
+                    flush();
+                }
+                if (reader.readLiteral(buffer) == 0) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Copies from earlier in the target. Bytes still buffered are copied
+         * within the buffer, and only those already written are read back
+         * from the channel. When the copy overlaps itself and all the bytes
+         * from its offset have been copied, the offset is kept, so that each
+         * step copies twice as many whole periods as the last.
+         */
+        void targetCopy(long offset, long length) throws IOException {
+            if (offset < 0 || offset >= written + buffer.position()) {
+                throw new IOException("Target copy does not refer to already patched data!");
+            }
+            while (length != 0) {
+                if (!buffer.hasRemaining()) {
+                    flush();
+                }
+                int position = buffer.position();
+                int count;
+                if (offset >= written) {
+                    // still buffered, so copied within the buffer
+                    int from = (int) (offset - written);
+                    count = (int) Math.min(Math.min(length, position - from), buffer.remaining());
+                    ByteBuffer block = buffer.duplicate();
+                    block.limit(from + count);
+                    block.position(from);
+                    buffer.put(block);
+                    if (count == position - from) {
+                        // the distance is now a whole number of periods more
+                        length -= count;
+                        continue;
+                    }
+                } else {
+                    // already written, so read back from the channel
+                    count = (int) Math.min(Math.min(length, written - offset), buffer.remaining());
+                    ByteBuffer into = buffer.duplicate();
+                    into.limit(position + count);
+                    read(target, offset, into);
+                    buffer.position(into.position());
+                }
+                offset += count;
+                length -= count;
+            }
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            write(buffer);
+            buffer.clear();
+        }
+
+        private void write(ByteBuffer data) throws IOException {
+            checksum.update(data.duplicate());
+            if (copy != null) {
+                ByteBuffer passed = data.duplicate();
+                while (passed.hasRemaining()) {
+                    copy.write(passed);
+                }
+            }
+            target.position(written);
+            while (data.hasRemaining()) {
+                written += target.write(data);
+            }
+        }
+    }
+}
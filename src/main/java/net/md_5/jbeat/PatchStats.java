@@ -0,0 +1,212 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+/**
+ * Figures gathered while creating or applying a single patch: the number of
+ * commands and bytes of each mode, the time spent in each phase, and the
+ * largest amount of buffer memory held at once.
+ */
+public final class PatchStats {
+
+    /**
+     * The phases between which the time taken is divided.
+     */
+    public enum Phase {
+
+        /**
+         * Mapping or reading the input files.
+         */
+        MAP,
+        /**
+         * Indexing the source or target before differencing.
+         */
+        INDEX,
+        /**
+         * Differencing the target and encoding the commands.
+         */
+        DIFF,
+        /**
+         * Executing the commands of a patch.
+         */
+        APPLY,
+        /**
+         * Computing and comparing checksums.
+         */
+        CHECKSUM,
+        /**
+         * Writing the patch or target to the output.
+         */
+        WRITE
+    }
+    /**
+     * Number of commands of each mode.
+     */
+    private final long[] commands = new long[4];
+    /**
+     * Number of target bytes produced by commands of each mode.
+     */
+    private final long[] bytes = new long[4];
+    /**
+     * Nanoseconds spent in each phase.
+     */
+    private final long[] nanos = new long[Phase.values().length];
+    private long sourceSize, targetSize, patchSize;
+    /**
+     * Nanoseconds from start to finish.
+     */
+    private long totalNanos;
+    /**
+     * Largest number of bytes of buffers held at once, excluding mapped files.
+     */
+    private long peakBufferBytes;
+
+    void command(int mode, long length) {
+        commands[mode]++;
+        bytes[mode] += length;
+    }
+
+    void phase(Phase phase, long elapsed) {
+        nanos[phase.ordinal()] += elapsed;
+    }
+
+    void buffers(long size) {
+        peakBufferBytes = Math.max(peakBufferBytes, size);
+    }
+
+    void sizes(long sourceSize, long targetSize, long patchSize) {
+        this.sourceSize = sourceSize;
+        this.targetSize = targetSize;
+        this.patchSize = patchSize;
+    }
+
+    void finish(long totalNanos) {
+        this.totalNanos = totalNanos;
+    }
+
+    /**
+     * Adds the time since the specified instant to a phase, if measuring.
+     *
+     * @return the current instant
+     */
+    static long lap(PatchStats stats, Phase phase, long since) {
+        long now = System.nanoTime();
+        if (stats != null) {
+            stats.phase(phase, now - since);
+        }
+        return now;
+    }
+
+    /**
+     * Returns the number of commands of the specified mode, one of the mode
+     * constants of {@link PatchReader}.
+     */
+    public long getCommands(int mode) {
+        return commands[mode];
+    }
+
+    /**
+     * Returns the number of commands of all modes.
+     */
+    public long getCommands() {
+        return commands[0] + commands[1] + commands[2] + commands[3];
+    }
+
+    /**
+     * Returns the number of target bytes produced by commands of the specified
+     * mode, one of the mode constants of {@link PatchReader}.
+     */
+    public long getBytes(int mode) {
+        return bytes[mode];
+    }
+
+    /**
+     * Returns the nanoseconds spent in the specified phase.
+     */
+    public long getNanos(Phase phase) {
+        return nanos[phase.ordinal()];
+    }
+
+    /**
+     * Returns the nanoseconds taken from start to finish.
+     */
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    public long getSourceSize() {
+        return sourceSize;
+    }
+
+    public long getTargetSize() {
+        return targetSize;
+    }
+
+    public long getPatchSize() {
+        return patchSize;
+    }
+
+    /**
+     * Returns the size of the patch relative to the target, close to 1 when
+     * little could be reused from the source.
+     */
+    public double getRatio() {
+        return (targetSize == 0) ? 0 : (double) patchSize / targetSize;
+    }
+
+    /**
+     * Returns the number of target bytes created or patched per second.
+     */
+    public double getThroughput() {
+        return (totalNanos == 0) ? 0 : targetSize * 1e9 / totalNanos;
+    }
+
+    /**
+     * Returns the largest number of bytes of buffers held at once, excluding
+     * files which were mapped into memory.
+     */
+    public long getPeakBufferBytes() {
+        return peakBufferBytes;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format("%d -> %d bytes, patch %d bytes (%.3f), %.1f MB/s, peak buffers %d bytes",
+                sourceSize, targetSize, patchSize, getRatio(), getThroughput() / (1 << 20), peakBufferBytes));
+        String[] names = {"source read", "target read", "source copy", "target copy"};
+        for (int mode = 0; mode < 4; mode++) {
+            builder.append(String.format(", %s %d/%d", names[mode], commands[mode], bytes[mode]));
+        }
+        for (Phase phase : Phase.values()) {
+            builder.append(String.format(", %s %.3f ms", phase.name().toLowerCase(), nanos[phase.ordinal()] / 1e6));
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,464 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.CRC32;
+import static net.md_5.jbeat.Shared.*;
+
+/**
+ * Writes beat version 1 patches. Commands are given with absolute offsets and
+ * encoded with the relative offsets the format requires, straight into a
+ * staging buffer which is written out in large chunks. The checksum of the
+ * patch itself is computed as it is written. <p> Each command is held back
+ * until the next arrives, so that adjacent reads, and copies which carry on
+ * where the last left off, are merged into one.
+ */
+public final class PatchWriter implements OpSink {
+
+    /**
+     * Size of the staging buffer.
+     */
+    private static final int BUFFER_SIZE = 1 << 16;
+    /**
+     * Room reserved for a complete command header, two numbers of at most 10
+     * bytes each.
+     */
+    private static final int MAX_COMMAND_SIZE = 20;
+    /**
+     * Stream to the patch output, or null when writing to a channel.
+     */
+    private final OutputStream out;
+    /**
+     * Channel to the patch output, or null when writing to a stream.
+     */
+    private final WritableByteChannel channel;
+    /**
+     * The target, from which {@link #targetRead(long)} takes literal bytes.
+     */
+    private final SegmentedBuffer target;
+    /**
+     * Encoded data waiting to be written.
+     */
+    private final ByteBuffer buffer;
+    /**
+     * Arena from which the staging buffer was taken, or null.
+     */
+    private BufferArena arena;
+    /**
+     * Running checksum of everything written.
+     */
+    private final CRC32 checksum = new CRC32();
+    /**
+     * Target offset at which the pending command starts.
+     */
+    private long outputOffset;
+    private long sourceRelativeOffset, targetRelativeOffset;
+    /**
+     * The command held back, waiting to be merged or written.
+     */
+    private long pendingMode, pendingOffset, pendingLength;
+    /**
+     * Figures to which commands and write times are added, or null.
+     */
+    private PatchStats stats;
+    /**
+     * Number of bytes written to the output.
+     */
+    private long written;
+
+    /**
+     * Creates a writer whose literal data is given explicitly through
+     * {@link #targetRead(ByteBuffer)}.
+     *
+     * @param out stream to which the patch will be written
+     */
+    public PatchWriter(OutputStream out) {
+        this(out, (SegmentedBuffer) null);
+    }
+
+    /**
+     * Creates a writer which takes literal data from the target.
+     *
+     * @param out stream to which the patch will be written
+     * @param target the complete target, from which {@link #targetRead(long)}
+     * copies literal bytes
+     */
+    public PatchWriter(OutputStream out, ByteBuffer target) {
+        this(out, whole(target));
+    }
+
+    PatchWriter(OutputStream out, SegmentedBuffer target) {
+        this.out = out;
+        this.channel = null;
+        this.target = target;
+        this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    }
+
+    /**
+     * Creates a writer which takes literal data from the target.
+     *
+     * @param out channel to which the patch will be written
+     * @param target the complete target, from which {@link #targetRead(long)}
+     * copies literal bytes
+     */
+    public PatchWriter(WritableByteChannel out, ByteBuffer target) {
+        this(out, whole(target));
+    }
+
+    PatchWriter(WritableByteChannel out, SegmentedBuffer target) {
+        this.out = null;
+        this.channel = out;
+        this.target = target;
+        this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    }
+
+    /**
+     * Creates a writer which takes literal data from the target, staging the
+     * patch in a buffer taken from an arena. The buffer must be given back
+     * with {@link #release()}.
+     *
+     * @param out channel to which the patch will be written
+     * @param target the complete target, from which {@link #targetRead(long)}
+     * copies literal bytes
+     * @param arena from which the staging buffer is taken
+     */
+    public PatchWriter(WritableByteChannel out, ByteBuffer target, BufferArena arena) throws IOException {
+        this(out, whole(target), arena);
+    }
+
+    PatchWriter(WritableByteChannel out, SegmentedBuffer target, BufferArena arena) throws IOException {
+        this.out = null;
+        this.channel = out;
+        this.target = target;
+        this.buffer = arena.acquire(BUFFER_SIZE);
+        this.arena = arena;
+    }
+
+    /**
+     * Wraps the whole of a target given by offset from its start, or returns
+     * null without one.
+     */
+    private static SegmentedBuffer whole(ByteBuffer target) {
+        if (target == null) {
+            return null;
+        }
+        ByteBuffer data = target.duplicate().order(target.order());
+        data.position(0);
+        return SegmentedBuffer.wrap(data);
+    }
+
+    /**
+     * Sets the figures to which each command written, and the time spent
+     * writing, are added.
+     */
+    void setStats(PatchStats stats) {
+        this.stats = stats;
+    }
+
+    /**
+     * Returns the size of the staging buffer.
+     */
+    int bufferSize() {
+        return buffer.capacity();
+    }
+
+    /**
+     * Returns the number of bytes written to the output so far.
+     */
+    long written() {
+        return written;
+    }
+
+    /**
+     * Writes the patch header. Must be called before any command.
+     *
+     * @param sourceSize length of the original file
+     * @param targetSize length of the modified file
+     * @param metadata UTF-8 beat metadata, may be null
+     */
+    public void writeHeader(long sourceSize, long targetSize, String metadata) throws IOException {
+        reserve(MAGIC_HEADER.length + MAX_COMMAND_SIZE);
+        for (char c : MAGIC_HEADER) {
+            buffer.put((byte) c);
+        }
+        encode(buffer, sourceSize);
+        encode(buffer, targetSize);
+        byte[] encoded = (metadata == null) ? new byte[0] : metadata.getBytes(CHARSET);
+        reserve(MAX_COMMAND_SIZE);
+        encode(buffer, encoded.length);
+        write(ByteBuffer.wrap(encoded));
+    }
+
+    @Override
+    public void sourceRead(long length) throws IOException {
+        push(SOURCE_READ, 0, length);
+    }
+
+    /**
+     * Copies {@code length} bytes of the target at the current output offset
+     * straight into the patch. Requires the writer to have been given the
+     * target.
+     */
+    @Override
+    public void targetRead(long length) throws IOException {
+        if (target == null) {
+            throw new IllegalStateException("Writer has no target to read literal data from");
+        }
+        push(TARGET_READ, 0, length);
+    }
+
+    /**
+     * Copies the remaining bytes of the buffer straight into the patch.
+     */
+    public void targetRead(ByteBuffer data) throws IOException {
+        flushCommand();
+        long length = data.remaining();
+        if (length != 0) {
+            reserve(MAX_COMMAND_SIZE);
+            encode(buffer, TARGET_READ | ((length - 1) << 2));
+            write(data);
+            if (stats != null) {
+                stats.command((int) TARGET_READ, length);
+            }
+            outputOffset += length;
+        }
+    }
+
+    @Override
+    public void sourceCopy(long offset, long length) throws IOException {
+        if (offset == outputOffset + pendingLength) {
+            // a copy from the same offset is just a read
+            push(SOURCE_READ, 0, length);
+        } else {
+            push(SOURCE_COPY, offset, length);
+        }
+    }
+
+    @Override
+    public void targetCopy(long offset, long length) throws IOException {
+        push(TARGET_COPY, offset, length);
+    }
+
+    /**
+     * Returns the target offset at which the next command will start.
+     */
+    public long getOutputOffset() {
+        return outputOffset + pendingLength;
+    }
+
+    /**
+     * Writes the checksums which end the patch, including that of the patch
+     * itself, and flushes everything to the output. Must be called once all
+     * commands have been given.
+     *
+     * @param sourceChecksum crc32 of the original file
+     * @param targetChecksum crc32 of the modified file
+     */
+    public void writeFooter(long sourceChecksum, long targetChecksum) throws IOException {
+        flushCommand();
+        reserve(8);
+        writeIntLE((int) sourceChecksum);
+        writeIntLE((int) targetChecksum);
+        drain();
+        writeIntLE((int) checksum.getValue());
+        drain();
+        if (out != null) {
+            out.flush();
+        }
+    }
+
+    /**
+     * Writes out everything given to the writer so far.
+     */
+    public void flush() throws IOException {
+        flushCommand();
+        drain();
+        if (out != null) {
+            out.flush();
+        }
+    }
+
+    /**
+     * Gives the staging buffer back to the arena it was taken from, if any.
+     * The writer must not be used afterwards.
+     */
+    public void release() {
+        if (arena != null) {
+            arena.release(buffer);
+            arena = null;
+        }
+    }
+
+    private void push(long mode, long offset, long length) throws IOException {
+        if (length == 0) {
+            return;
+        }
+        if (pendingLength != 0 && mode == pendingMode
+                && (mode == SOURCE_READ || mode == TARGET_READ || offset == pendingOffset + pendingLength)) {
+            pendingLength += length;
+        } else {
+            flushCommand();
+            pendingMode = mode;
+            pendingOffset = offset;
+            pendingLength = length;
+        }
+    }
+
+    /**
+     * Encodes the pending command into the staging buffer.
+     */
+    private void flushCommand() throws IOException {
+        if (pendingLength == 0) {
+            return;
+        }
+        reserve(MAX_COMMAND_SIZE);
+        encode(buffer, pendingMode | ((pendingLength - 1) << 2));
+        if (pendingMode == TARGET_READ) {
+            // taken a segment at a time, as a literal may span several
+            long offset = outputOffset, length = pendingLength;
+            while (length != 0) {
+                ByteBuffer literal = target.view(offset, length);
+                offset += literal.remaining();
+                length -= literal.remaining();
+                write(literal);
+            }
+        } else if (pendingMode == SOURCE_COPY) {
+            encode(buffer, relative(pendingOffset - sourceRelativeOffset));
+            sourceRelativeOffset = pendingOffset + pendingLength;
+        } else if (pendingMode == TARGET_COPY) {
+            encode(buffer, relative(pendingOffset - targetRelativeOffset));
+            targetRelativeOffset = pendingOffset + pendingLength;
+        }
+        if (stats != null) {
+            stats.command((int) pendingMode, pendingLength);
+        }
+        outputOffset += pendingLength;
+        pendingLength = 0;
+    }
+
+    /**
+     * Copies the remaining bytes of the buffer into the staging buffer in
+     * bulk, writing out the staging buffer whenever it fills.
+     */
+    private void write(ByteBuffer data) throws IOException {
+        if (data.remaining() >= BUFFER_SIZE && (channel != null || data.hasArray())) {
+            // large literals go straight out
+            drain();
+            checksum.update(data.duplicate());
+            writeFully(data);
+            return;
+        }
+        while (data.hasRemaining()) {
+            if (!buffer.hasRemaining()) {
+                drain();
+            }
+            ByteBuffer part = data.duplicate();
+            part.limit(part.position() + Math.min(buffer.remaining(), part.remaining()));
+            buffer.put(part);
+            data.position(part.position());
+        }
+    }
+
+    private void writeIntLE(int value) {
+        buffer.put((byte) value);
+        buffer.put((byte) (value >> 8));
+        buffer.put((byte) (value >> 16));
+        buffer.put((byte) (value >> 24));
+    }
+
+    /**
+     * Makes sure the staging buffer has room for the specified number of
+     * bytes.
+     */
+    private void reserve(int length) throws IOException {
+        if (buffer.remaining() < length) {
+            drain();
+        }
+    }
+
+    /**
+     * Writes out and checksums the staging buffer.
+     */
+    private void drain() throws IOException {
+        if (buffer.position() != 0) {
+            buffer.flip();
+            checksum.update(buffer.duplicate());
+            writeFully(buffer);
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Writes all remaining bytes of a buffer to the output. Only buffers
+     * backed by an array may be written to a stream.
+     */
+    private void writeFully(ByteBuffer data) throws IOException {
+        long start = (stats != null) ? System.nanoTime() : 0;
+        written += data.remaining();
+        if (channel != null) {
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+        } else {
+            out.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+            data.position(data.limit());
+        }
+        if (stats != null) {
+            stats.phase(PatchStats.Phase.WRITE, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Converts a signed offset to the form used by the copy commands.
+     */
+    private static long relative(long offset) {
+        return (Math.abs(offset) << 1) | (offset < 0 ? 1 : 0);
+    }
+
+    /**
+     * Encode a single number into it's variable length form at the position
+     * of the buffer.
+     */
+    static void encode(ByteBuffer buffer, long data) {
+        while (true) {
+            long x = data & 0x7f;
+            data >>= 7;
+            if (data == 0) {
+                buffer.put((byte) (0x80 | x));
+                return;
+            }
+            buffer.put((byte) x);
+            data--;
+        }
+    }
+}
@@ -0,0 +1,385 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Read only view of the target of a patch, producing only the bytes which are
+ * actually read. The patch is read once up front to index the range of the
+ * target produced by each command, after which any range is found with a
+ * binary search and filled from the source, the literal bytes of the patch or,
+ * for target copies, the ranges they copy from. Blocks of the target needed by
+ * target copies are kept in a small least recently used cache, as copies often
+ * refer back to the same data. <p> The patch checksum is verified when the
+ * view is created, but the target checksum cannot be without producing the
+ * whole target, so the source must be known to be the right one.
+ */
+public final class PatchedChannel implements SeekableByteChannel {
+
+    /**
+     * Size of the blocks of the target cached for target copies.
+     */
+    private static final int BLOCK_SIZE = 1 << 16;
+    /**
+     * Number of blocks cached.
+     */
+    private static final int CACHED_BLOCKS = 16;
+    /**
+     * Stack entry filling a range of the output from a range of the target.
+     */
+    private static final int RESOLVE = 0;
+    /**
+     * Stack entry repeating the start of a range of the output to its end.
+     */
+    private static final int REPEAT = 1;
+    /**
+     * The patch, of which only literal bytes are read after indexing.
+     */
+    private final SegmentedBuffer patch;
+    /**
+     * The original file from which the patch was created.
+     */
+    private final SegmentedBuffer source;
+    /**
+     * Length of the target.
+     */
+    private final long size;
+    /**
+     * Number of commands.
+     */
+    private int count;
+    /**
+     * Offset of the target at which each command starts, plus a final entry
+     * for its end.
+     */
+    private long[] starts = new long[64];
+    /**
+     * Mode of each command.
+     */
+    private byte[] modes = new byte[64];
+    /**
+     * Offset of each command: into the source for source reads and copies,
+     * into the patch for target reads and into the target for target copies.
+     */
+    private long[] offsets = new long[64];
+    /**
+     * Cached blocks of the target, in order of use.
+     */
+    private final Map<Long, byte[]> blocks = new LinkedHashMap<Long, byte[]>(CACHED_BLOCKS * 2, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+            return size() > CACHED_BLOCKS;
+        }
+    };
+    /**
+     * Ranges waiting to be filled, as quadruples of kind, target offset,
+     * output offset and length.
+     */
+    private long[] stack = new long[64];
+    private int depth;
+    /**
+     * Bytes produced for the caller before being copied out.
+     */
+    private byte[] scratch;
+    private long position;
+    private boolean open = true;
+
+    /**
+     * Creates a view of the target of a patch applied to a source, mapping
+     * both files.
+     *
+     * @param patchFile the beat format patch file
+     * @param sourceFile original file from which the patch was created
+     */
+    public PatchedChannel(File patchFile, File sourceFile) throws IOException {
+        this(map(patchFile), map(sourceFile));
+    }
+
+    /**
+     * Creates a view of the target of a patch applied to a source. Neither
+     * buffer is modified.
+     *
+     * @param patch the beat format patch, from its position to its limit
+     * @param source original data from which the patch was created, from its
+     * position to its limit
+     */
+    public PatchedChannel(ByteBuffer patch, ByteBuffer source) throws IOException {
+        this(SegmentedBuffer.wrap(patch), SegmentedBuffer.wrap(source));
+    }
+
+    private PatchedChannel(SegmentedBuffer patch, SegmentedBuffer source) throws IOException {
+        this.patch = patch;
+        this.source = source;
+        PatchReader reader = PatchReader.of(patch, 0, patch.size());
+        reader.readHeader();
+        if (source.size() < reader.getSourceSize()) {
+            throw new IOException("Source file is smaller than the patch expects!");
+        }
+        size = reader.getTargetSize();
+        while (reader.next()) {
+            if (count + 1 == starts.length) {
+                starts = Arrays.copyOf(starts, starts.length * 2);
+                modes = Arrays.copyOf(modes, modes.length * 2);
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            }
+            int mode = reader.getMode();
+            long offset = (mode == PatchReader.TARGET_READ) ? reader.consumed() : reader.getOffset();
+            if (mode == PatchReader.TARGET_COPY) {
+                if (offset < 0 || offset >= reader.getOutputOffset()) {
+                    throw new IOException("Target copy does not refer to already patched data!");
+                }
+            } else if (mode != PatchReader.TARGET_READ) {
+                if (offset < 0 || offset + reader.getLength() > reader.getSourceSize()) {
+                    throw new IOException("Patch command refers to data outside of its file!");
+                }
+            }
+            starts[count] = reader.getOutputOffset();
+            modes[count] = (byte) mode;
+            offsets[count] = offset;
+            count++;
+        }
+        starts[count] = size;
+        reader.readFooter();
+        if (reader.getComputedPatchChecksum() != reader.getPatchChecksum()) {
+            throw new IOException("Patch checksum does not match!");
+        }
+    }
+
+    private static SegmentedBuffer map(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            return SegmentedBuffer.map(in.getChannel(), FileChannel.MapMode.READ_ONLY, in.length());
+        } finally {
+            in.close();
+        }
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        ensureOpen();
+        if (position >= size) {
+            return -1;
+        }
+        int length = (int) Math.min(dst.remaining(), size - position);
+        int read = 0;
+        while (read < length) {
+            int chunk = Math.min(length - read, BLOCK_SIZE);
+            if (scratch == null) {
+                scratch = new byte[BLOCK_SIZE];
+            }
+            fill(position, scratch, chunk, true);
+            dst.put(scratch, 0, chunk);
+            position += chunk;
+            read += chunk;
+        }
+        return read;
+    }
+
+    /**
+     * Fills the start of the array with the specified number of target bytes.
+     *
+     * @param cache whether target copies may fill blocks of the cache, or only
+     * use those already there
+     */
+    private void fill(long from, byte[] out, int count, boolean cache) throws IOException {
+        // a fill of the cache runs within another fill, so leaves its entries
+        int base = depth;
+        push(RESOLVE, from, 0, count);
+        while (depth != base) {
+            depth -= 4;
+            int kind = (int) stack[depth];
+            long position = stack[depth + 1];
+            int offset = (int) stack[depth + 2];
+            int length = (int) stack[depth + 3];
+            if (kind == REPEAT) {
+                // position is the period, double the bytes copied each pass
+                for (int done = (int) position; done < length; done *= 2) {
+                    System.arraycopy(out, offset, out, offset + done, Math.min(done, length - done));
+                }
+                continue;
+            }
+            int op = find(position);
+            int available = (int) Math.min(length, starts[op + 1] - position);
+            if (available < length) {
+                // the rest of the range comes after this command
+                push(RESOLVE, position + available, offset + available, length - available);
+            }
+            long within = position - starts[op];
+            if (modes[op] == PatchReader.TARGET_READ) {
+                get(patch, offsets[op] + within, out, offset, available);
+            } else if (modes[op] != PatchReader.TARGET_COPY) {
+                get(source, offsets[op] + within, out, offset, available);
+            } else {
+                // the command repeats every distance bytes, so only the first
+                // period needs to be found
+                long distance = starts[op] - offsets[op];
+                long phase = within % distance;
+                if (available > distance) {
+                    push(REPEAT, distance, offset, available);
+                    available = (int) distance;
+                }
+                int head = (int) Math.min(available, distance - phase);
+                copy(offsets[op] + phase, out, offset, head, cache);
+                if (head < available) {
+                    copy(offsets[op], out, offset + head, available - head, cache);
+                }
+            }
+        }
+    }
+
+    /**
+     * Fills a range of the output with target bytes from earlier in the
+     * target, through the cache where possible.
+     */
+    private void copy(long from, byte[] out, int offset, int length, boolean cache) throws IOException {
+        while (length != 0) {
+            long block = from / BLOCK_SIZE;
+            int within = (int) (from % BLOCK_SIZE);
+            int count = Math.min(length, BLOCK_SIZE - within);
+            byte[] data = blocks.get(block);
+            if (data == null && cache) {
+                data = new byte[(int) Math.min(BLOCK_SIZE, size - block * BLOCK_SIZE)];
+                // filling a block only uses blocks already cached, so never recurses
+                fill(block * BLOCK_SIZE, data, data.length, false);
+                blocks.put(block, data);
+            }
+            if (data != null) {
+                System.arraycopy(data, within, out, offset, count);
+            } else {
+                push(RESOLVE, from, offset, count);
+            }
+            from += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * Copies bytes from an absolute offset of a buffer into an array.
+     */
+    private static void get(SegmentedBuffer buffer, long from, byte[] out, int offset, int length) throws IOException {
+        if (from + length > buffer.size()) {
+            throw new IOException("Patch command refers to data outside of its file!");
+        }
+        buffer.get(from, out, offset, length);
+    }
+
+    /**
+     * Finds the command which produces the specified offset of the target.
+     */
+    private int find(long position) {
+        int low = 0, high = count - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (starts[middle] <= position) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    private void push(int kind, long position, int offset, int length) {
+        if (depth + 4 > stack.length) {
+            stack = Arrays.copyOf(stack, stack.length * 2);
+        }
+        stack[depth++] = kind;
+        stack[depth++] = position;
+        stack[depth++] = offset;
+        stack[depth++] = length;
+    }
+
+    /**
+     * Always throws, as the view is read only.
+     */
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+        ensureOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Position must not be negative");
+        }
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        ensureOpen();
+        return size;
+    }
+
+    /**
+     * Always throws, as the view is read only.
+     */
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public synchronized void close() {
+        open = false;
+        blocks.clear();
+        scratch = null;
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+}
@@ -30,14 +30,45 @@ package net.md_5.jbeat;
 
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
- * beat version 1 compliant binary patcher.
+ * beat version 1 compliant binary patcher. Operates on memory mapped files,
+ * leaving the operating system to page data in and out as required.
  */
 public final class Patcher extends PatcherIO {
 
+    /**
+     * The beat format patch file.
+     */
+    private final RandomAccessFile patchFile;
+    /**
+     * The original file from which the patch was created.
+     */
+    private final RandomAccessFile sourceFile;
+    /**
+     * The file to which the patched data will be output.
+     */
+    private final RandomAccessFile targetFile;
+    /**
+     * Whether the patch and source checksums are checked while patching.
+     */
+    private boolean failFast;
+    /**
+     * The whole source file supplied already mapped, or null to map it.
+     */
+    private SegmentedBuffer cachedSource;
+    /**
+     * Checksum of the supplied source.
+     */
+    private long cachedChecksum;
+
     /**
      * Create a new beat patcher instance. In order to complete the patch
      * process {@link #patch()} method must be called.
@@ -49,7 +80,325 @@ public final class Patcher extends PatcherIO {
      * read or write access
      */
     public Patcher(File patchFile, File sourceFile, File targetFile) throws FileNotFoundException {
-        super(new FileInputStream(patchFile), new FileInputStream(sourceFile), new FileOutputStream(targetFile));
+        this(new RandomAccessFile(patchFile, "r"), new RandomAccessFile(sourceFile, "r"), new RandomAccessFile(targetFile, "rw"));
+    }
+
+    private Patcher(RandomAccessFile patchFile, RandomAccessFile sourceFile, RandomAccessFile targetFile) {
+        super(Channels.newInputStream(patchFile.getChannel()), Channels.newInputStream(sourceFile.getChannel()), Channels.newOutputStream(targetFile.getChannel()));
+        this.patchFile = patchFile;
+        this.sourceFile = sourceFile;
+        this.targetFile = targetFile;
+    }
+
+    /**
+     * Sets whether the patch and source checksums are checked on background
+     * threads while the patch is applied, rather than once it has been. The
+     * footer is read up front, and patching is abandoned as soon as either
+     * checksum is found not to match, so that a wrong source or a damaged
+     * patch is rejected without waiting for the whole target to be written.
+     *
+     * @param failFast whether to check the checksums while patching, false by
+     * default
+     */
+    public void setFailFast(boolean failFast) {
+        this.failFast = failFast;
+    }
+
+    /**
+     * Supplies the whole source file already mapped and checksummed, so that
+     * patches applied to the same source may share them. Used whenever the
+     * patch applies to the whole file.
+     */
+    void setSource(SegmentedBuffer source, long sourceChecksum) {
+        this.cachedSource = source;
+        this.cachedChecksum = sourceChecksum;
+    }
+
+    /**
+     * Maps as much of the source file as the patch needs, unless the supplied
+     * source is exactly that.
+     */
+    private static SegmentedBuffer mapSource(RandomAccessFile sourceFile, long sourceSize, SegmentedBuffer cachedSource) throws IOException {
+        if (cachedSource != null && cachedSource.size() == sourceSize) {
+            return cachedSource;
+        }
+        return SegmentedBuffer.map(sourceFile.getChannel(), FileChannel.MapMode.READ_ONLY, sourceSize);
+    }
+
+    /**
+     * Applies the patch. The patch and source are mapped read only, while the
+     * target is sized up front and mapped read write, so that reads and copies
+     * are bulk transfers between mapped regions and next to no heap is used.
+     */
+    @Override
+    public void patch() throws IOException {
+        PatchMetrics metrics = getMetrics();
+        PatchStats stats = (metrics == null) ? null : new PatchStats();
+        long start = System.nanoTime(), time = start;
+        Checks checks = null;
+        try {
+            // map patch file into memory
+            final long patchLength = patchFile.length();
+            SegmentedBuffer patch = SegmentedBuffer.map(patchFile.getChannel(), FileChannel.MapMode.READ_ONLY, patchLength);
+
+            PatchReader reader = PatchReader.of(patch, 0, patchLength);
+
+            // check the header, reading the sizes and metadata
+            reader.readHeader();
+            final long sourceSize = reader.getSourceSize();
+            if (sourceFile.length() < sourceSize) {
+                throw new IOException("Source file is smaller than the patch expects!");
+            }
+            // map as much of the source file as we need into memory
+            SegmentedBuffer source = Patcher.mapSource(sourceFile, sourceSize, cachedSource);
+            if (failFast) {
+                checks = new Checks(patch, source);
+            }
+
+            final long targetSize = reader.getTargetSize();
+            // size the target and map it into memory
+            targetFile.setLength(targetSize);
+            SegmentedBuffer target = SegmentedBuffer.map(targetFile.getChannel(), FileChannel.MapMode.READ_WRITE, targetSize);
+            time = PatchStats.lap(stats, PatchStats.Phase.MAP, time);
+
+            // do the actual patching
+            while (reader.next()) {
+                if (checks != null) {
+                    checks.poll();
+                }
+                if (stats != null) {
+                    stats.command(reader.getMode(), reader.getLength());
+                }
+                PatcherIO.apply(reader, source, target);
+            }
+
+            time = PatchStats.lap(stats, PatchStats.Phase.APPLY, time);
+
+            final long targetChecksum;
+            if (checks != null) {
+                // the footer was read up front, so must follow the last command
+                if (reader.consumed() != patchLength - 12) {
+                    throw new IOException("Patch file does not end after its last command!");
+                }
+                checks.await();
+                targetChecksum = checks.targetChecksum;
+            } else {
+                reader.readFooter();
+
+                // checksum of the source
+                long sourceChecksum = (source == cachedSource) ? cachedChecksum : source.checksum(0, sourceSize);
+                if (sourceChecksum != reader.getSourceChecksum()) {
+                    throw new IOException("Source checksum does not match!");
+                }
+
+                // checksum of the patch itself
+                if (reader.getComputedPatchChecksum() != reader.getPatchChecksum()) {
+                    throw new IOException("Patch checksum does not match!");
+                }
+                targetChecksum = reader.getTargetChecksum();
+            }
+
+            // checksum of the target
+            if (target.checksum(0, targetSize) != targetChecksum) {
+                throw new IOException("Target checksum does not match!");
+            }
+            if (stats != null) {
+                PatchStats.lap(stats, PatchStats.Phase.CHECKSUM, time);
+                stats.sizes(sourceSize, targetSize, patchLength);
+            }
+        } finally {
+            if (checks != null) {
+                checks.cancel();
+            }
+            // close the files
+            patchFile.close();
+            sourceFile.close();
+            targetFile.close();
+        }
+        if (stats != null) {
+            stats.finish(System.nanoTime() - start);
+            metrics.applied(stats);
+        }
+    }
+
+    /**
+     * Checks the patch without producing any output, see
+     * {@link PatcherIO#verify()}. The source checksum is computed on a
+     * background thread while the commands are checked. The target file
+     * opened by the constructor is left untouched, see
+     * {@link #verify(File, File)} to verify without one.
+     */
+    @Override
+    public void verify() throws IOException {
+        try {
+            Patcher.verify(patchFile, sourceFile, cachedSource, cachedChecksum);
+        } finally {
+            // close the files
+            patchFile.close();
+            sourceFile.close();
+            targetFile.close();
+        }
+    }
+
+    /**
+     * Checks a patch against its source without producing any output, see
+     * {@link PatcherIO#verify()}. Unlike {@link #verify()}, no target file is
+     * opened or created.
+     *
+     * @param patchFile the beat format patch file
+     * @param sourceFile original file from which the patch was created
+     * @throws IOException when the patch is malformed, either checksum does
+     * not match or the files cannot be read
+     */
+    public static void verify(File patchFile, File sourceFile) throws IOException {
+        Patcher.verify(patchFile, sourceFile, null, 0);
+    }
+
+    /**
+     * Checks a patch against its source, using the supplied source, if not
+     * null, wherever the patch applies to the whole of it.
+     */
+    static void verify(File patchFile, File sourceFile, SegmentedBuffer cachedSource, long cachedChecksum) throws IOException {
+        try (RandomAccessFile patch = new RandomAccessFile(patchFile, "r"); RandomAccessFile source = new RandomAccessFile(sourceFile, "r")) {
+            Patcher.verify(patch, source, cachedSource, cachedChecksum);
+        }
+    }
+
+    private static void verify(RandomAccessFile patchFile, RandomAccessFile sourceFile, SegmentedBuffer cachedSource, long cachedChecksum) throws IOException {
+        Future<Long> sourceChecksum = null;
+        try {
+            final long patchLength = patchFile.length();
+            SegmentedBuffer patch = SegmentedBuffer.map(patchFile.getChannel(), FileChannel.MapMode.READ_ONLY, patchLength);
+
+            PatchReader reader = PatchReader.of(patch, 0, patchLength);
+            reader.readHeader();
+            final long sourceSize = reader.getSourceSize();
+            if (sourceFile.length() < sourceSize) {
+                throw new IOException("Source file is smaller than the patch expects!");
+            }
+            SegmentedBuffer source = Patcher.mapSource(sourceFile, sourceSize, cachedSource);
+            if (source != cachedSource) {
+                sourceChecksum = Checks.checksum(source, sourceSize);
+            }
+
+            PatcherIO.verifyCommands(reader);
+            if (((sourceChecksum == null) ? cachedChecksum : Checks.get(sourceChecksum)) != reader.getSourceChecksum()) {
+                throw new IOException("Source checksum does not match!");
+            }
+        } finally {
+            if (sourceChecksum != null) {
+                sourceChecksum.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Checksums of the patch and of the source, computed on background
+     * threads and compared with those in the footer of the patch, which is
+     * read up front.
+     */
+    private static final class Checks {
+
+        /**
+         * Checksums stored in the footer.
+         */
+        private final long sourceChecksum, targetChecksum, patchChecksum;
+        /**
+         * Pending computations, null once checked.
+         */
+        private Future<Long> source, patch;
+
+        /**
+         * Reads the footer and starts computing the checksums.
+         */
+        Checks(SegmentedBuffer patch, SegmentedBuffer source) throws IOException {
+            if (patch.size() < 12) {
+                throw new IOException("Patch file does not contain a footer!");
+            }
+            ByteBuffer footer = patch.view(patch.size() - 12, 12).order(ByteOrder.LITTLE_ENDIAN);
+            sourceChecksum = PatcherIO.readInt(footer);
+            targetChecksum = PatcherIO.readInt(footer);
+            patchChecksum = PatcherIO.readInt(footer);
+            this.source = checksum(source, source.size());
+            this.patch = checksum(patch, patch.size() - 4);
+        }
+
+        /**
+         * Checks whichever checksums have been computed, failing if any does
+         * not match.
+         */
+        void poll() throws IOException {
+            if (source != null && source.isDone()) {
+                checkSource();
+            }
+            if (patch != null && patch.isDone()) {
+                checkPatch();
+            }
+        }
+
+        /**
+         * Waits for and checks both checksums.
+         */
+        void await() throws IOException {
+            if (source != null) {
+                checkSource();
+            }
+            if (patch != null) {
+                checkPatch();
+            }
+        }
+
+        private void checkSource() throws IOException {
+            long checksum = get(source);
+            source = null;
+            if (checksum != sourceChecksum) {
+                throw new IOException("Source checksum does not match!");
+            }
+        }
+
+        private void checkPatch() throws IOException {
+            long checksum = get(patch);
+            patch = null;
+            if (checksum != patchChecksum) {
+                throw new IOException("Patch checksum does not match!");
+            }
+        }
+
+        /**
+         * Abandons any checksums still being computed.
+         */
+        void cancel() {
+            if (source != null) {
+                source.cancel(true);
+            }
+            if (patch != null) {
+                patch.cancel(true);
+            }
+        }
+
+        /**
+         * Starts computing the checksum of the start of a buffer on a
+         * background thread.
+         */
+        static Future<Long> checksum(final SegmentedBuffer buffer, final long length) {
+            return ForkJoinPool.commonPool().submit(new Callable<Long>() {
+                @Override
+                public Long call() {
+                    return buffer.checksum(0, length);
+                }
+            });
+        }
+
+        static long get(Future<Long> checksum) throws IOException {
+            try {
+                return checksum.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted whilst checking the patch");
+            } catch (ExecutionException ex) {
+                throw Shared.rethrow(ex);
+            }
+        }
     }
 
     public static void main(final String[] arguments) throws IOException {
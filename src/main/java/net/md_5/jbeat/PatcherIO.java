@@ -30,10 +30,26 @@ package net.md_5.jbeat;
 
 import java.io.*;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.CRC32;
 
 public class PatcherIO {
 
+    /**
+     * Size of the chunks in which the patch is read and the target written.
+     */
+    static final int BUFFER_SIZE = 65536;
+    /**
+     * Shortest target copy which is made with block transfers.
+     */
+    private static final int TARGET_COPY_BULK_LENGTH = 16;
+    /**
+     * Largest target held in memory whilst patching from a stream.
+     */
+    static final int RESIDENT_TARGET_SIZE = 1 << 24;
+
     /**
      * The Input stream for the patch file.
      */
@@ -49,6 +65,17 @@ public class PatcherIO {
      */
     private final OutputStream outputFileOutStream;
 
+    /**
+     * Arena from which the patch window, source and target are taken, or
+     * null to allocate them.
+     */
+    private BufferArena arena;
+
+    /**
+     * Listener told about the patch once applied, or null.
+     */
+    private PatchMetrics metrics;
+
     /**
      * Create a new beat patcher instance. In order to complete the patch
      * process {@link #patch()} method must be called.
@@ -63,104 +90,231 @@ public class PatcherIO {
         this.outputFileOutStream = outputFileOutStream;
     }
 
+    /**
+     * Sets an arena from which the buffers holding the source, the target and
+     * a window of the patch are taken, so that repeated patching allocates
+     * nothing on the heap for them. The arena must be large enough to hold
+     * the source and target of every patch applied at once.
+     *
+     * @param arena the arena to use, or null to allocate the buffers
+     */
+    public void setBufferArena(BufferArena arena) {
+        this.arena = arena;
+    }
+
+    /**
+     * Sets a listener which is told the command counts, phase timings and
+     * sizes of the patch once applied. Nothing is measured without one.
+     *
+     * @param metrics the listener, or null for none
+     */
+    public void setMetrics(PatchMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    PatchMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Applies the patch, writing the target to the output stream as it is
+     * produced. Commands are decoded straight from the patch stream, and the
+     * source, which copy commands may refer to anywhere, is held in memory.
+     * Targets of up to {@link #RESIDENT_TARGET_SIZE} bytes are also held in
+     * memory for target copies to refer back to; larger targets are staged
+     * through a temporary file from which target copies are read back, so
+     * that only a couple of small buffers are held for them. All three
+     * checksums are computed along the way. The streams are closed once
+     * patching completes.
+     */
     public void patch() throws IOException {
+        PatchStats stats = (metrics == null) ? null : new PatchStats();
+        long start = System.nanoTime(), time = start;
+        ByteBuffer window = null, source = null, target = null;
         try {
-            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-            int read;
-            while((read = patchFileInputStream.read()) != -1) {//Read the patch file's input stream to be wrote into the byte array output stream, which then will be converted into a ByteBuffer (by first converting it into a byte array then wrapping to a ByteBuffer).
-                byteArrayOutputStream.write(read);
+            // decode commands straight from the patch stream
+            PatchReader patch;
+            if (arena != null) {
+                window = arena.acquire(PatcherIO.BUFFER_SIZE);
+                patch = new PatchReader(Channels.newChannel(patchFileInputStream), window);
+            } else {
+                patch = new PatchReader(patchFileInputStream);
             }
 
-            // store patch length
-            final long patchLength = byteArrayOutputStream.size();
+            // check the header, reading the sizes and metadata
+            patch.readHeader();
+            final long sourceSize = patch.getSourceSize();
+            final long targetSize = patch.getTargetSize();
+            if (sourceSize > Integer.MAX_VALUE) {
+                throw new IOException("Source is " + sourceSize + " bytes, but must be smaller than 2GB to be patched from a stream!");
+            }
 
-            // map patch file into memory
-            ByteBuffer patch = ByteBuffer.wrap(byteArrayOutputStream.toByteArray());
-            byteArrayOutputStream.reset();//Reset the byte array output stream for later usage
+            // read the source into memory, as copies may come from anywhere within it
+            source = allocate((int) sourceSize);
+            PatcherIO.read(inputFileInputStream, source, (int) sourceSize);
+            time = PatchStats.lap(stats, PatchStats.Phase.MAP, time);
+            CRC32 sourceChecksum = new CRC32();
+            source.flip();
+            sourceChecksum.update(source);
+            time = PatchStats.lap(stats, PatchStats.Phase.CHECKSUM, time);
 
-            // check the header
-            for (char c : Shared.MAGIC_HEADER) {
-                if (patch.get() != c) {
-                    throw new IOException("Patch file does not contain correct BPS header!");
-                }
+            long targetChecksum;
+            if (targetSize <= RESIDENT_TARGET_SIZE) {
+                // the target produced so far, which target copies may refer back to
+                target = allocate((int) targetSize);
+                targetChecksum = resident(patch, source, target, stats);
+            } else {
+                targetChecksum = staged(patch, source, stats);
             }
-            // read source size
-            long sourceSize = PatcherIO.decode(patch);
-
-            // map as much of the source file as we need into memory
-            while((read = inputFileInputStream.read()) != -1) {//Read the input file's input stream to be wrote into the byte array output stream, which then will be converted into a ByteBuffer (by first converting it into a byte array then wrapping to a ByteBuffer).
-                byteArrayOutputStream.write(read);
+            if (stats != null) {
+                // time spent writing the target is not applying
+                long writing = stats.getNanos(PatchStats.Phase.WRITE);
+                time = PatchStats.lap(stats, PatchStats.Phase.APPLY, time + writing);
             }
-            ByteBuffer source = ByteBuffer.wrap(byteArrayOutputStream.toByteArray());
-            byteArrayOutputStream.reset();//Reset the byte array output stream for later usage
+            patch.readFooter();
 
-            // read target size
-            final long targetSize = PatcherIO.decode(patch);
+            // checksum of the source
+            if (sourceChecksum.getValue() != patch.getSourceChecksum()) {
+                throw new IOException("Source checksum does not match!");
+            }
 
-            // map a large enough chunk of the target into memory
-            ByteBuffer target = ByteBuffer.allocate((int)targetSize);
+            // checksum of the target
+            if (targetChecksum != patch.getTargetChecksum()) {
+                throw new IOException("Target checksum does not match!");
+            }
 
-            // read metadata
-            String metadata = PatcherIO.readString(patch);
+            // checksum of the patch itself, which does not cover its own value
+            if (patch.getComputedPatchChecksum() != patch.getPatchChecksum()) {
+                throw new IOException("Patch checksum does not match!");
+            }
+            if (stats != null) {
+                PatchStats.lap(stats, PatchStats.Phase.CHECKSUM, time);
+                long held = (target != null) ? target.capacity() : 2L * PatcherIO.BUFFER_SIZE;
+                stats.buffers((long) PatcherIO.BUFFER_SIZE + source.capacity() + held);
+                stats.sizes(sourceSize, targetSize, patch.consumed());
+            }
+        } finally {
+            if (arena != null) {
+                for (ByteBuffer buffer : new ByteBuffer[]{window, source, target}) {
+                    if (buffer != null) {
+                        arena.release(buffer);
+                    }
+                }
+            }
+            // close the streams
+            patchFileInputStream.close();
+            inputFileInputStream.close();
+            outputFileOutStream.close();
+        }
+        if (stats != null) {
+            stats.finish(System.nanoTime() - start);
+            metrics.applied(stats);
+        }
+    }
 
-            // store last offsets
-            int sourceOffset = 0, targetOffset = 0;
+    /**
+     * Applies the remaining commands of the patch with the whole target held
+     * in the specified buffer, writing it out in chunks as it is produced.
+     * Returns the checksum of the target.
+     */
+    private long resident(PatchReader patch, ByteBuffer source, ByteBuffer target, PatchStats stats) throws IOException {
+        WritableByteChannel output = target.hasArray() ? null : Channels.newChannel(outputFileOutStream);
+        CRC32 targetChecksum = new CRC32();
+        int written = 0;
+        while (patch.next()) {
+            long length = patch.getLength();
+            long offset = patch.getOffset();
+            int mode = patch.getMode();
+            if (stats != null) {
+                stats.command(mode, length);
+            }
+            // branch per mode
+            if (mode == PatchReader.SOURCE_READ || mode == PatchReader.SOURCE_COPY) {
+                target.put(PatcherIO.slice(source, offset, length));
+            } else if (mode == PatchReader.TARGET_READ) {
+                if (length > target.remaining()) {
+                    throw new IOException("Patch command refers to data outside of its file!");
+                }
+                int end = target.position() + (int) length;
+                while (target.position() != end) {
+                    patch.readLiteral(target);
+                }
+            } else {
+                PatcherIO.targetCopy(target, offset, length);
+            }
+            // pass on what we have so far
+            if (target.position() - written >= PatcherIO.BUFFER_SIZE) {
+                written = write(target, written, targetChecksum, output, stats);
+            }
+        }
+        write(target, written, targetChecksum, output, stats);
+        return targetChecksum.getValue();
+    }
 
-            // do the actual patching
-            while (patch.position() < patchLength - 12) {
-                long length = PatcherIO.decode(patch);
-                long mode = length & 3;
-                length = (length >> 2) + 1;
-                // branch per mode
-                if (mode == Shared.SOURCE_READ) {
-                    while (length-- != 0) {
-                        target.put(source.get(target.position()));
-                    }
-                } else if (mode == Shared.TARGET_READ) {
-                    while (length-- != 0) {
-                        target.put(patch.get());
+    /**
+     * Applies the remaining commands of the patch through a temporary file,
+     * which target copies read back from, passing every byte on to the output
+     * stream as it is staged. Returns the checksum of the target.
+     */
+    private long staged(PatchReader patch, ByteBuffer source, PatchStats stats) throws IOException {
+        File staging = File.createTempFile("jbeat", ".target");
+        try {
+            try (RandomAccessFile file = new RandomAccessFile(staging, "rw")) {
+                PatchService.Output output = new PatchService.Output(file.getChannel(), Channels.newChannel(outputFileOutStream));
+                while (patch.next()) {
+                    long length = patch.getLength();
+                    long offset = patch.getOffset();
+                    int mode = patch.getMode();
+                    if (stats != null) {
+                        stats.command(mode, length);
                     }
-                } else {
-                    // start the same
-                    long data = PatcherIO.decode(patch);
-                    long offset = (((data & 1) != 0) ? -1 : 1) * (data >> 1);
-                    // descend deeper
-                    if (mode == Shared.SOURCE_COPY) {
-                        sourceOffset += offset;
-                        while (length-- != 0) {
-                            target.put(source.get(sourceOffset++));
-                        }
+                    // branch per mode
+                    if (mode == PatchReader.SOURCE_READ || mode == PatchReader.SOURCE_COPY) {
+                        output.put(PatcherIO.slice(source, offset, length));
+                    } else if (mode == PatchReader.TARGET_READ) {
+                        output.literal(patch);
                     } else {
-                        targetOffset += offset;
-                        while (length-- != 0) {
-                            target.put(target.get(targetOffset++));
-                        }
+                        output.targetCopy(offset, length);
                     }
                 }
+                output.flush();
+                return output.getChecksum();
             }
-
-            // flip to little endian mode
-            patch.order(ByteOrder.LITTLE_ENDIAN);
-
-            // checksum of the source
-            final long sourceChecksum = PatcherIO.readInt(patch);
-            if (Shared.checksum(source, sourceSize) != sourceChecksum) {
-                throw new IOException("Source checksum does not match!");
+        } finally {
+            if (!staging.delete()) {
+                staging.deleteOnExit();
             }
+        }
+    }
 
-            // checksum of the target
-            final long targetChecksum = PatcherIO.readInt(patch);
-            if (Shared.checksum(target, targetSize) != targetChecksum) {
-                throw new IOException("Target checksum does not match!");
-            }
+    /**
+     * Checks the patch without producing any output. The structure of every
+     * command is checked against the sizes in the header, and the checksums
+     * of the patch and of the source are compared with those in the footer.
+     * The target checksum cannot be checked without applying the patch. The
+     * streams are closed once verification completes.
+     */
+    public void verify() throws IOException {
+        try {
+            PatchReader patch = new PatchReader(patchFileInputStream);
+            patch.readHeader();
 
-            // checksum of the patch itself
-            final long patchChecksum = PatcherIO.readInt(patch);
-            if (Shared.checksum(patch, patchLength - 4) != patchChecksum) {
-                throw new IOException("Patch checksum does not match!");
+            // checksum as much of the source as the patch applies to
+            CRC32 sourceChecksum = new CRC32();
+            byte[] buffer = new byte[PatcherIO.BUFFER_SIZE];
+            for (long remaining = patch.getSourceSize(); remaining != 0;) {
+                int read = inputFileInputStream.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read == -1) {
+                    throw new IOException("Source file is smaller than the patch expects!");
+                }
+                sourceChecksum.update(buffer, 0, read);
+                remaining -= read;
             }
 
-            outputFileOutStream.write(target.array());//Write the "target" to the output stream.
+            PatcherIO.verifyCommands(patch);
+            if (sourceChecksum.getValue() != patch.getSourceChecksum()) {
+                throw new IOException("Source checksum does not match!");
+            }
         } finally {
             // close the streams
             patchFileInputStream.close();
@@ -169,6 +323,181 @@ public class PatcherIO {
         }
     }
 
+    /**
+     * Reads every remaining command of a patch, checking that each only refers
+     * to data which exists by the time it is applied, and then reads the
+     * footer and checks the patch checksum.
+     */
+    static void verifyCommands(PatchReader patch) throws IOException {
+        while (patch.next()) {
+            long offset = patch.getOffset();
+            int mode = patch.getMode();
+            if (mode == PatchReader.TARGET_COPY) {
+                if (offset < 0 || offset >= patch.getOutputOffset()) {
+                    throw new IOException("Target copy does not refer to already patched data!");
+                }
+            } else if (mode != PatchReader.TARGET_READ) {
+                if (offset < 0 || offset + patch.getLength() > patch.getSourceSize()) {
+                    throw new IOException("Patch command refers to data outside of its file!");
+                }
+            }
+        }
+        patch.readFooter();
+        if (patch.getComputedPatchChecksum() != patch.getPatchChecksum()) {
+            throw new IOException("Patch checksum does not match!");
+        }
+    }
+
+    /**
+     * Writes the target bytes from the specified offset up to its current
+     * position to the output stream, adding them to the target checksum.
+     * Returns the offset up to which the target has now been written. Targets
+     * not backed by an array are written through the specified channel.
+     */
+    private int write(ByteBuffer target, int written, CRC32 checksum, WritableByteChannel output, PatchStats stats) throws IOException {
+        int end = target.position();
+        if (end > written) {
+            long start = (stats != null) ? System.nanoTime() : 0;
+            ByteBuffer pending = target.duplicate();
+            pending.position(written);
+            pending.limit(end);
+            checksum.update(pending.duplicate());
+            if (pending.hasArray()) {
+                outputFileOutStream.write(pending.array(), pending.arrayOffset() + written, end - written);
+            } else {
+                while (pending.hasRemaining()) {
+                    output.write(pending);
+                }
+            }
+            if (stats != null) {
+                stats.phase(PatchStats.Phase.WRITE, System.nanoTime() - start);
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Returns a view of {@code length} bytes of the buffer starting at the
+     * specified offset, checking that they are within its bounds.
+     */
+    static ByteBuffer slice(ByteBuffer buffer, long offset, long length) throws IOException {
+        if (offset < 0 || offset + length > buffer.limit()) {
+            throw new IOException("Patch command refers to data outside of its file!");
+        }
+        ByteBuffer slice = buffer.duplicate();
+        slice.position((int) offset);
+        slice.limit((int) (offset + length));
+        return slice;
+    }
+
+    /**
+     * Copies {@code length} bytes from earlier in the target to its position.
+     * When the copy overlaps the bytes it produces, the source repeats every
+     * {@code distance} bytes, so the bytes already copied are copied again as
+     * one block, doubling the block each time. Only short copies are made a
+     * byte at a time.
+     */
+    static void targetCopy(ByteBuffer target, long offset, long length) throws IOException {
+        int position = target.position();
+        if (offset < 0 || offset >= position) {
+            throw new IOException("Target copy does not refer to already patched data!");
+        }
+        int from = (int) offset;
+        if (length < TARGET_COPY_BULK_LENGTH) {
+            while (length-- != 0) {
+                target.put(target.get(from++));
+            }
+            return;
+        }
+        ByteBuffer block = target.duplicate();
+        block.position(from);
+        while (length != 0) {
+            // everything from the offset up to the position is a valid source
+            int count = (int) Math.min(length, target.position() - from);
+            block.limit(from + count);
+            target.put(block);
+            block.position(from);
+            length -= count;
+        }
+    }
+
+    /**
+     * Carries out the current command of a reader, producing its bytes in the
+     * target at the offset at which the command starts. Used where the whole
+     * target is mapped, however large.
+     */
+    static void apply(PatchReader reader, SegmentedBuffer source, SegmentedBuffer target) throws IOException {
+        long length = reader.getLength();
+        long offset = reader.getOffset();
+        long position = reader.getOutputOffset();
+        int mode = reader.getMode();
+        // branch per mode
+        if (mode == PatchReader.SOURCE_READ || mode == PatchReader.SOURCE_COPY) {
+            if (offset < 0 || offset + length > source.size()) {
+                throw new IOException("Patch command refers to data outside of its file!");
+            }
+            target.put(position, source, offset, length);
+        } else if (mode == PatchReader.TARGET_READ) {
+            long end = position + length;
+            while (position != end) {
+                position += reader.readLiteral(target.view(position, end - position));
+            }
+        } else {
+            if (offset < 0 || offset >= position) {
+                throw new IOException("Target copy does not refer to already patched data!");
+            }
+            if (length < TARGET_COPY_BULK_LENGTH) {
+                while (length-- != 0) {
+                    target.put(position++, target.get(offset++));
+                }
+                return;
+            }
+            while (length != 0) {
+                // everything from the offset up to the position is a valid source
+                long count = Math.min(length, position - offset);
+                target.put(position, target, offset, count);
+                position += count;
+                length -= count;
+            }
+        }
+    }
+
+    /**
+     * Allocates a buffer from the arena if there is one.
+     */
+    private ByteBuffer allocate(int size) throws IOException {
+        return (arena == null) ? ByteBuffer.allocate(size) : arena.acquire(size);
+    }
+
+    /**
+     * Reads exactly {@code length} bytes from the stream into the buffer,
+     * advancing its position.
+     */
+    private static void read(InputStream in, ByteBuffer into, int length) throws IOException {
+        if (into.hasArray()) {
+            int offset = into.arrayOffset() + into.position(), end = offset + length;
+            while (offset < end) {
+                int read = in.read(into.array(), offset, end - offset);
+                if (read == -1) {
+                    throw new EOFException("Unexpected end of stream!");
+                }
+                offset += read;
+            }
+            into.position(into.position() + length);
+        } else {
+            // the channel of a file stream is its own, so reads are not copied
+            ReadableByteChannel channel = Channels.newChannel(in);
+            ByteBuffer limited = into.duplicate();
+            limited.limit(into.position() + length);
+            while (limited.hasRemaining()) {
+                if (channel.read(limited) == -1) {
+                    throw new EOFException("Unexpected end of stream!");
+                }
+            }
+            into.position(limited.position());
+        }
+    }
+
     /**
      * Read a UTF-8 string with variable length number length descriptor. Will
      * return null if there is no data read, or the string is of 0 length.
@@ -193,7 +522,7 @@ public class PatcherIO {
     }
 
     /**
-     * Read a single variable length number from the input stream.
+     * Read a single variable length number from the buffer.
      */
     public static long decode(ByteBuffer in) throws IOException {
         long data = 0, shift = 1;
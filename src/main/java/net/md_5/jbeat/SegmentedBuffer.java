@@ -0,0 +1,236 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * A buffer addressed by long offsets, made of a series of buffers of at most
+ * {@link #SEGMENT_SIZE} bytes, so that files larger than a single buffer can
+ * hold may be mapped into memory. Each segment also covers the first
+ * {@link #OVERLAP} bytes of the next, so that any word, and any short range,
+ * may be read from a single segment. Bulk operations work segment by segment
+ * on the underlying buffers, and only single bytes pay for the lookup of
+ * their segment. <p> Only absolute operations are offered, which leave the
+ * underlying buffers untouched, so a buffer may be shared by many threads.
+ */
+final class SegmentedBuffer {
+
+    /**
+     * Number of bits of an offset within a segment.
+     */
+    private static final int SEGMENT_SHIFT = 30;
+    /**
+     * Number of bytes starting in each segment.
+     */
+    static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+    /**
+     * Number of bytes of the next segment also covered by each segment.
+     */
+    static final int OVERLAP = 1 << 16;
+    /**
+     * The segments, each starting at a multiple of the segment size.
+     */
+    private final ByteBuffer[] segments;
+    /**
+     * The buffer the segments were taken from, or null when too large for
+     * one.
+     */
+    private final ByteBuffer whole;
+    /**
+     * Total number of bytes.
+     */
+    private final long size;
+
+    private SegmentedBuffer(ByteBuffer[] segments, ByteBuffer whole, long size) {
+        this.segments = segments;
+        this.whole = whole;
+        this.size = size;
+    }
+
+    /**
+     * Creates a buffer over the bytes of an existing buffer, from its position
+     * to its limit.
+     */
+    static SegmentedBuffer wrap(ByteBuffer buffer) {
+        ByteBuffer whole = buffer.slice().order(buffer.order());
+        long size = whole.remaining();
+        ByteBuffer[] segments = new ByteBuffer[count(size)];
+        for (int i = 0; i < segments.length; i++) {
+            ByteBuffer segment = whole.duplicate();
+            segment.limit((int) Math.min(size, (long) i * SEGMENT_SIZE + SEGMENT_SIZE + OVERLAP));
+            segment.position(i * SEGMENT_SIZE);
+            segments[i] = segment.slice().order(buffer.order());
+        }
+        return new SegmentedBuffer(segments, whole, size);
+    }
+
+    /**
+     * Maps the first {@code size} bytes of a file into memory, as a single
+     * buffer if it fits in one.
+     */
+    static SegmentedBuffer map(FileChannel channel, FileChannel.MapMode mode, long size) throws IOException {
+        if (size <= Integer.MAX_VALUE) {
+            return wrap(channel.map(mode, 0, size));
+        }
+        ByteBuffer[] segments = new ByteBuffer[count(size)];
+        for (int i = 0; i < segments.length; i++) {
+            long start = (long) i * SEGMENT_SIZE;
+            segments[i] = channel.map(mode, start, Math.min(size - start, SEGMENT_SIZE + OVERLAP));
+        }
+        return new SegmentedBuffer(segments, null, size);
+    }
+
+    private static int count(long size) {
+        return (size == 0) ? 1 : (int) ((size + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT);
+    }
+
+    long size() {
+        return size;
+    }
+
+    ByteOrder order() {
+        return segments[0].order();
+    }
+
+    /**
+     * Returns the whole buffer as a single buffer, which requires it to fit.
+     */
+    ByteBuffer buffer() {
+        if (whole == null) {
+            throw new IllegalStateException("Buffer is too large to be accessed as one");
+        }
+        return whole.duplicate().order(whole.order());
+    }
+
+    byte get(long offset) {
+        return segments[(int) (offset >>> SEGMENT_SHIFT)].get((int) offset & (SEGMENT_SIZE - 1));
+    }
+
+    void put(long offset, byte value) {
+        segments[(int) (offset >>> SEGMENT_SHIFT)].put((int) offset & (SEGMENT_SIZE - 1), value);
+    }
+
+    /**
+     * Reads the eight bytes at the specified offset as a long, in the byte
+     * order of the buffer.
+     */
+    long getLong(long offset) {
+        return segments[(int) (offset >>> SEGMENT_SHIFT)].getLong((int) offset & (SEGMENT_SIZE - 1));
+    }
+
+    /**
+     * Returns a view of as many of the {@code length} bytes starting at the
+     * offset as lie in a single segment, always at least the lesser of the
+     * length and the overlap. The view's position is the offset within its
+     * segment.
+     */
+    ByteBuffer view(long offset, long length) {
+        if (offset < 0 || length < 0 || offset + length > size) {
+            throw new IndexOutOfBoundsException();
+        }
+        ByteBuffer segment = segments[(int) (offset >>> SEGMENT_SHIFT)];
+        int position = (int) offset & (SEGMENT_SIZE - 1);
+        ByteBuffer view = segment.duplicate();
+        view.limit((int) Math.min(segment.limit(), position + length));
+        view.position(position);
+        return view;
+    }
+
+    /**
+     * Copies {@code length} bytes starting at the specified offset into an
+     * array.
+     */
+    void get(long offset, byte[] into, int intoOffset, int length) {
+        while (length != 0) {
+            ByteBuffer view = view(offset, length);
+            int count = view.remaining();
+            view.get(into, intoOffset, count);
+            offset += count;
+            intoOffset += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * Copies {@code length} bytes from an offset of another buffer to an
+     * offset of this one. The ranges must not overlap.
+     */
+    void put(long offset, SegmentedBuffer from, long fromOffset, long length) {
+        while (length != 0) {
+            ByteBuffer source = from.view(fromOffset, length);
+            ByteBuffer target = view(offset, source.remaining());
+            source.limit(source.position() + target.remaining());
+            int count = source.remaining();
+            target.put(source);
+            offset += count;
+            fromOffset += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * Computes the crc32 checksum of {@code length} bytes starting at the
+     * specified offset, combining the checksums of the segments.
+     */
+    long checksum(long offset, long length) {
+        long crc = 0;
+        while (length != 0) {
+            ByteBuffer view = view(offset, Math.min(length, SEGMENT_SIZE));
+            int count = view.remaining();
+            crc = Shared.crc32Combine(crc, Shared.checksum(view, view.position(), count), count);
+            offset += count;
+            length -= count;
+        }
+        return crc;
+    }
+
+    /**
+     * Counts the number of equal bytes at the specified offsets of two
+     * buffers, up to the specified limit, comparing eight bytes at a time
+     * within each pair of segments.
+     */
+    static long matchLength(SegmentedBuffer a, long aOffset, SegmentedBuffer b, long bOffset, long limit) {
+        long length = 0;
+        while (length < limit) {
+            ByteBuffer x = a.view(aOffset + length, limit - length);
+            ByteBuffer y = b.view(bOffset + length, limit - length);
+            int count = Math.min(x.remaining(), y.remaining());
+            int matched = PatchCreator.matchLength(x, x.position(), y, y.position(), count);
+            length += matched;
+            if (matched != count) {
+                break;
+            }
+        }
+        return length;
+    }
+}
@@ -28,10 +28,14 @@
  */
 package net.md_5.jbeat;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CharsetEncoder;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 import java.util.zip.CRC32;
 
 /**
@@ -73,20 +77,152 @@ final class Shared {
      * UTF-8 ENCODER.
      */
     static final CharsetEncoder ENCODER = Shared.CHARSET.newEncoder();
+    /**
+     * Inputs of at least this many bytes are checksummed in parallel chunks.
+     */
+    private static final long PARALLEL_CHECKSUM_SIZE = 16 << 20;
+    /**
+     * Size of the chunks checksummed by each parallel task.
+     */
+    private static final long CHECKSUM_CHUNK_SIZE = 4 << 20;
 
     /**
      * Creates a crc32 checksum of a ByteBuffer. This method will checksum up to
-     * {@code length} bytes from the buffer, starting at the beginning. <p> This
-     * method is destructive and will call {@link java.nio.Buffer#rewind()},
-     * thus discarding the current mark and position.
+     * {@code length} bytes from the buffer, starting at the beginning. The
+     * data is read straight from the buffer, and its position and limit are
+     * left untouched. Large buffers are checksummed in parallel chunks whose
+     * checksums are then combined.
      */
     static long checksum(ByteBuffer in, long length) {
+        return checksum(in, 0, length);
+    }
+
+    /**
+     * Creates a crc32 checksum of {@code length} bytes of a ByteBuffer,
+     * starting at the specified offset.
+     */
+    static long checksum(ByteBuffer in, long offset, long length) {
+        if (length >= PARALLEL_CHECKSUM_SIZE) {
+            return ForkJoinPool.commonPool().invoke(new ChecksumTask(in, offset, length));
+        }
         CRC32 crc = new CRC32();
-        byte[] back = new byte[(int) length];
-        in.rewind();
-        in.get(back);
-        crc.update(back);
+        ByteBuffer data = in.duplicate();
+        data.limit((int) (offset + length));
+        data.position((int) offset);
+        crc.update(data);
         return crc.getValue();
     }
 
+    /**
+     * Throws the cause of a failed task, as is if possible. Fork join pools
+     * wrap checked exceptions in plain runtime exceptions, which are
+     * unwrapped.
+     */
+    static IOException rethrow(ExecutionException ex) throws IOException {
+        Throwable cause = ex.getCause();
+        while (cause.getClass() == RuntimeException.class && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        if (cause instanceof IOException) {
+            throw (IOException) cause;
+        } else if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        throw new IOException(cause);
+    }
+
+    /**
+     * Combines the crc32 checksums of two consecutive blocks of data into the
+     * checksum of both, given the length of the second block. Adapted from
+     * crc32_combine in zlib, which applies the length of zeros to the first
+     * checksum using square and multiply over GF(2) matrices.
+     */
+    static long crc32Combine(long crc1, long crc2, long length2) {
+        if (length2 <= 0) {
+            return crc1;
+        }
+        long[] even = new long[32];
+        long[] odd = new long[32];
+
+        // put the operator for one zero bit in odd
+        odd[0] = 0xEDB88320L;
+        long row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        // put the operators for two and four zero bits in even and odd
+        gf2MatrixSquare(even, odd);
+        gf2MatrixSquare(odd, even);
+
+        // apply length2 zeros to crc1, the first square puts the operator for
+        // one zero byte, eight zero bits, in even
+        do {
+            gf2MatrixSquare(even, odd);
+            if ((length2 & 1) != 0) {
+                crc1 = gf2MatrixTimes(even, crc1);
+            }
+            length2 >>= 1;
+            if (length2 == 0) {
+                break;
+            }
+            gf2MatrixSquare(odd, even);
+            if ((length2 & 1) != 0) {
+                crc1 = gf2MatrixTimes(odd, crc1);
+            }
+            length2 >>= 1;
+        } while (length2 != 0);
+        return crc1 ^ crc2;
+    }
+
+    private static long gf2MatrixTimes(long[] matrix, long vector) {
+        long sum = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void gf2MatrixSquare(long[] square, long[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = gf2MatrixTimes(matrix, matrix[n]);
+        }
+    }
+
+    /**
+     * Checksums halves of a range concurrently, combining the results.
+     */
+    private static final class ChecksumTask extends RecursiveTask<Long> {
+
+        private static final long serialVersionUID = 1L;
+        private final ByteBuffer in;
+        private final long offset, length;
+
+        ChecksumTask(ByteBuffer in, long offset, long length) {
+            this.in = in;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        protected Long compute() {
+            if (length <= CHECKSUM_CHUNK_SIZE) {
+                CRC32 crc = new CRC32();
+                ByteBuffer data = in.duplicate();
+                data.limit((int) (offset + length));
+                data.position((int) offset);
+                crc.update(data);
+                return crc.getValue();
+            }
+            long half = length / 2;
+            ChecksumTask first = new ChecksumTask(in, offset, half);
+            first.fork();
+            long second = new ChecksumTask(in, offset + half, length - half).compute();
+            return crc32Combine(first.join(), second, length - half);
+        }
+    }
 }
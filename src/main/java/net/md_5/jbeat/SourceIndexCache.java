@@ -0,0 +1,267 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Cache of source indexes, for when many patches are created against the same
+ * source. Each index is built once and saved to a file in the cache directory
+ * named after the length and checksum of the source it was built from, so
+ * that later runs, even in other processes, map the saved file instead of
+ * building it again. Indexes in use are also kept in memory, the least
+ * recently used being dropped once they exceed a budget. <p> A cache may be
+ * shared by any number of creators, see {@link BlockCreator#setIndexCache}.
+ * Indexes are loaded, built and saved outside the lock of the cache, each
+ * only once however many creators ask for it, so a large source does not
+ * hold up creators asking for others.
+ */
+public final class SourceIndexCache {
+
+    /**
+     * Identifies an index file.
+     */
+    private static final int MAGIC = 0x58444942;
+    /**
+     * Version of the index file layout.
+     */
+    private static final int VERSION = 1;
+    /**
+     * Size of the index file header: magic, version, block size, source
+     * checksum and source length.
+     */
+    private static final int HEADER_SIZE = 24;
+    /**
+     * Directory holding the index files.
+     */
+    private final File directory;
+    /**
+     * Number of bytes of indexes to keep in memory.
+     */
+    private final long budget;
+    /**
+     * Indexes held in memory, in order of use.
+     */
+    private final Map<String, BlockIndex> indexes = new LinkedHashMap<String, BlockIndex>(16, 0.75f, true);
+    /**
+     * Indexes being loaded or built, which creators asking for the same index
+     * wait on.
+     */
+    private final Map<String, FutureTask<BlockIndex>> pending = new HashMap<String, FutureTask<BlockIndex>>();
+    /**
+     * Number of bytes of the indexes held in memory.
+     */
+    private long size;
+
+    /**
+     * Creates a new cache.
+     *
+     * @param directory where the index files are kept, created if needed, or
+     * null to only keep indexes in memory
+     * @param budget number of bytes of indexes to keep in memory, the most
+     * recently used index is always kept
+     */
+    public SourceIndexCache(File directory, long budget) {
+        if (budget < 0) {
+            throw new IllegalArgumentException("Budget must not be negative");
+        }
+        this.directory = directory;
+        this.budget = budget;
+    }
+
+    /**
+     * Returns the block index of a source, from memory, from its saved file or
+     * by building and saving it, in that order of preference.
+     *
+     * @param source the source to index
+     * @param length number of bytes of the source
+     * @param checksum CRC32 of the source
+     * @param blockSize size of the indexed blocks
+     */
+    BlockIndex get(final SegmentedBuffer source, final long length, final long checksum, final int blockSize) throws IOException {
+        String name = String.format("%016x-%08x-%d.bidx", length, checksum, blockSize);
+        final File file = (directory == null) ? null : new File(directory, name);
+        FutureTask<BlockIndex> task;
+        boolean owner = false;
+        synchronized (this) {
+            BlockIndex index = indexes.get(name);
+            if (index != null) {
+                return index;
+            }
+            task = pending.get(name);
+            if (task == null) {
+                task = new FutureTask<BlockIndex>(new Callable<BlockIndex>() {
+                    @Override
+                    public BlockIndex call() throws IOException {
+                        BlockIndex index = (file == null) ? null : load(file, length, checksum, blockSize);
+                        if (index == null) {
+                            index = new BlockIndex(source, length, blockSize);
+                            if (file != null) {
+                                save(file, index, length, checksum);
+                            }
+                        }
+                        return index;
+                    }
+                });
+                pending.put(name, task);
+                owner = true;
+            }
+        }
+        if (owner) {
+            // the first to ask builds the index, the others wait for it
+            task.run();
+            synchronized (this) {
+                pending.remove(name);
+                if (!task.isCancelled()) {
+                    try {
+                        BlockIndex index = task.get();
+                        indexes.put(name, index);
+                        size += index.size();
+                        evict();
+                    } catch (ExecutionException ex) {
+                        // passed on below
+                    } catch (InterruptedException ex) {
+                        // cannot happen, the task is done
+                    }
+                }
+            }
+        }
+        try {
+            return task.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted whilst waiting for a source index");
+        } catch (ExecutionException ex) {
+            throw Shared.rethrow(ex);
+        }
+    }
+
+    /**
+     * Drops every index held in memory. Saved files are kept.
+     */
+    public synchronized void clear() {
+        indexes.clear();
+        size = 0;
+    }
+
+    /**
+     * Drops the least recently used indexes until those left fit the budget.
+     */
+    private void evict() {
+        Iterator<BlockIndex> it = indexes.values().iterator();
+        while (size > budget && indexes.size() > 1) {
+            size -= it.next().size();
+            it.remove();
+        }
+    }
+
+    /**
+     * Maps a saved index, returning null if there is none or it does not
+     * match the source.
+     */
+    private BlockIndex load(File file, long length, long checksum, int blockSize) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            long fileLength = in.length();
+            if (fileLength < HEADER_SIZE || fileLength > Integer.MAX_VALUE) {
+                return null;
+            }
+            ByteBuffer data = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, fileLength);
+            data.order(ByteOrder.LITTLE_ENDIAN);
+            if (data.getInt() != MAGIC || data.getInt() != VERSION || data.getInt() != blockSize
+                    || (data.getInt() & 0xFFFFFFFFL) != checksum || data.getLong() != length) {
+                return null;
+            }
+            try {
+                return new BlockIndex(data, blockSize);
+            } catch (IllegalArgumentException ex) {
+                return null;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Saves an index through a temporary file, so that other processes only
+     * ever see complete files. Failing to save only costs a rebuild later, so
+     * is not an error.
+     */
+    private void save(File file, BlockIndex index, long length, long checksum) {
+        File temp = null;
+        try {
+            directory.mkdirs();
+            temp = File.createTempFile(file.getName(), ".tmp", directory);
+            RandomAccessFile out = new RandomAccessFile(temp, "rw");
+            try {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                header.putInt(MAGIC).putInt(VERSION).putInt(index.blockSize).putInt((int) checksum).putLong(length);
+                header.flip();
+                FileChannel channel = out.getChannel();
+                while (header.hasRemaining()) {
+                    channel.write(header);
+                }
+                ByteBuffer data = index.data();
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+            } finally {
+                out.close();
+            }
+            try {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException ex) {
+            if (temp != null) {
+                temp.delete();
+            }
+        }
+    }
+}
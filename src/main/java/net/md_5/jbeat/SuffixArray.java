@@ -0,0 +1,181 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.util.Arrays;
+
+/**
+ * Linear time suffix array construction using the SA-IS algorithm by Nong,
+ * Zhang and Chan. Operates on integer alphabets so that callers may insert
+ * unique separator symbols between concatenated inputs.
+ */
+final class SuffixArray {
+
+    private SuffixArray() {
+    }
+
+    /**
+     * Builds the suffix array of {@code text}. The final symbol of the text
+     * must be 0 and must not appear anywhere else, and every symbol must be
+     * less than {@code alphabetSize}.
+     *
+     * @param text the input symbols, terminated by a unique 0 sentinel
+     * @param alphabetSize one greater than the largest symbol in the text
+     * @return the starting offsets of all suffixes of the text, in sorted
+     * order
+     */
+    static int[] build(int[] text, int alphabetSize) {
+        int[] sa = new int[text.length];
+        if (text.length == 1) {
+            return sa;
+        }
+        sais(text, sa, text.length, alphabetSize);
+        return sa;
+    }
+
+    private static void sais(int[] s, int[] sa, int n, int k) {
+        // classify each suffix as S (true) or L (false) type
+        boolean[] t = new boolean[n];
+        t[n - 1] = true;
+        for (int i = n - 2; i >= 0; i--) {
+            t[i] = s[i] < s[i + 1] || (s[i] == s[i + 1] && t[i + 1]);
+        }
+        int[] bucket = new int[k];
+
+        // stage 1: sort the LMS substrings by induction
+        buckets(s, bucket, n, k, true);
+        Arrays.fill(sa, 0, n, -1);
+        for (int i = 1; i < n; i++) {
+            if (isLms(t, i)) {
+                sa[--bucket[s[i]]] = i;
+            }
+        }
+        induceL(s, sa, t, bucket, n, k);
+        induceS(s, sa, t, bucket, n, k);
+
+        // compact the sorted LMS substrings into the front of the array
+        int n1 = 0;
+        for (int i = 0; i < n; i++) {
+            if (isLms(t, sa[i])) {
+                sa[n1++] = sa[i];
+            }
+        }
+
+        // name the LMS substrings, equal substrings share a name
+        Arrays.fill(sa, n1, n, -1);
+        int name = 0, prev = -1;
+        for (int i = 0; i < n1; i++) {
+            int pos = sa[i];
+            boolean diff = false;
+            for (int d = 0; d < n; d++) {
+                if (prev == -1 || s[pos + d] != s[prev + d] || t[pos + d] != t[prev + d]) {
+                    diff = true;
+                    break;
+                } else if (d > 0 && (isLms(t, pos + d) || isLms(t, prev + d))) {
+                    break;
+                }
+            }
+            if (diff) {
+                name++;
+                prev = pos;
+            }
+            sa[n1 + (pos >> 1)] = name - 1;
+        }
+        int[] s1 = new int[n1];
+        for (int i = n - 1, j = n1 - 1; i >= n1; i--) {
+            if (sa[i] >= 0) {
+                s1[j--] = sa[i];
+            }
+        }
+
+        // stage 2: solve the reduced problem, recursing if names are not unique
+        int[] sa1 = new int[n1];
+        if (name < n1) {
+            sais(s1, sa1, n1, name);
+        } else {
+            for (int i = 0; i < n1; i++) {
+                sa1[s1[i]] = i;
+            }
+        }
+
+        // stage 3: induce the full suffix array from the sorted LMS suffixes
+        buckets(s, bucket, n, k, true);
+        for (int i = 1, j = 0; i < n; i++) {
+            if (isLms(t, i)) {
+                s1[j++] = i;
+            }
+        }
+        Arrays.fill(sa, 0, n, -1);
+        for (int i = n1 - 1; i >= 0; i--) {
+            int j = s1[sa1[i]];
+            sa[--bucket[s[j]]] = j;
+        }
+        induceL(s, sa, t, bucket, n, k);
+        induceS(s, sa, t, bucket, n, k);
+    }
+
+    private static boolean isLms(boolean[] t, int i) {
+        return i > 0 && t[i] && !t[i - 1];
+    }
+
+    /**
+     * Computes the start or end offset of each symbol bucket.
+     */
+    private static void buckets(int[] s, int[] bucket, int n, int k, boolean end) {
+        Arrays.fill(bucket, 0, k, 0);
+        for (int i = 0; i < n; i++) {
+            bucket[s[i]]++;
+        }
+        int sum = 0;
+        for (int i = 0; i < k; i++) {
+            sum += bucket[i];
+            bucket[i] = end ? sum : sum - bucket[i];
+        }
+    }
+
+    private static void induceL(int[] s, int[] sa, boolean[] t, int[] bucket, int n, int k) {
+        buckets(s, bucket, n, k, false);
+        for (int i = 0; i < n; i++) {
+            int j = sa[i] - 1;
+            if (j >= 0 && !t[j]) {
+                sa[bucket[s[j]]++] = j;
+            }
+        }
+    }
+
+    private static void induceS(int[] s, int[] sa, boolean[] t, int[] bucket, int n, int k) {
+        buckets(s, bucket, n, k, true);
+        for (int i = n - 1; i >= 0; i--) {
+            int j = sa[i] - 1;
+            if (j >= 0 && t[j]) {
+                sa[--bucket[s[j]]] = j;
+            }
+        }
+    }
+}
@@ -0,0 +1,423 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+/**
+ * Creates a single patch from one directory tree to another, in the format
+ * described by {@link TreeEntry}. Every file of both trees is hashed, files
+ * which have not changed are only listed, and files which have merely moved
+ * or been duplicated are copied from their source by content. Only the
+ * remaining files are differenced, concurrently, each against the source file
+ * of the same path, or failing that of the same name, or else against
+ * nothing. Empty directories are not recorded.
+ */
+public final class TreeCreator {
+
+    /**
+     * The clean, unmodified tree.
+     */
+    private final File sourceDirectory;
+    /**
+     * The modified tree which we will difference with the source tree.
+     */
+    private final File targetDirectory;
+    /**
+     * The location to which the patch will be generated.
+     */
+    private final File output;
+    /**
+     * The patch creator to use for each changed file.
+     */
+    private final BatchCreator.Style style;
+    /**
+     * Number of files hashed or differenced at once.
+     */
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Creates a new tree patch creator instance. In order to create and output
+     * the patch the {@link #create()} method must be called.
+     *
+     * @param sourceDirectory tree, which the patch applicator will have access
+     * to
+     * @param targetDirectory tree which has been changed from the original
+     * @param output location to which the patch will be output
+     * @param style of patch to create for each changed file
+     */
+    public TreeCreator(File sourceDirectory, File targetDirectory, File output, BatchCreator.Style style) {
+        this.sourceDirectory = sourceDirectory;
+        this.targetDirectory = targetDirectory;
+        this.output = output;
+        this.style = style;
+    }
+
+    /**
+     * Sets the number of files hashed or differenced at once, the number of
+     * processors by default.
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Threads must be at least 1");
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * Creates the tree patch. If differencing any file fails the first failure
+     * is thrown, once those already running have finished.
+     */
+    public void create() throws IOException {
+        Map<String, File> sourceFiles = list(sourceDirectory);
+        Map<String, File> targetFiles = list(targetDirectory);
+        File temporaryDirectory = output.getAbsoluteFile().getParentFile();
+        List<File> temporary = new ArrayList<File>();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            Map<String, Scanned> sources = scan(pool, sourceFiles);
+            Map<String, Scanned> targets = scan(pool, targetFiles);
+
+            // source files by content, to find those which have moved, and by
+            // name, for those which have moved and changed
+            Map<String, List<String>> byContent = new HashMap<String, List<String>>();
+            Map<String, String> byName = new HashMap<String, String>();
+            for (Map.Entry<String, Scanned> source : sources.entrySet()) {
+                String key = source.getValue().size + ":" + source.getValue().checksum;
+                List<String> paths = byContent.get(key);
+                if (paths == null) {
+                    byContent.put(key, paths = new ArrayList<String>());
+                }
+                paths.add(source.getKey());
+                String name = source.getValue().file.getName();
+                if (!targets.containsKey(source.getKey()) && !byName.containsKey(name)) {
+                    byName.put(name, source.getKey());
+                }
+            }
+
+            List<TreeEntry> entries = new ArrayList<TreeEntry>();
+            List<Future<Long>> patches = new ArrayList<Future<Long>>();
+            for (Map.Entry<String, Scanned> file : targets.entrySet()) {
+                String path = file.getKey();
+                final Scanned target = file.getValue();
+                Scanned same = sources.get(path);
+                if (same != null && same.matches(target)) {
+                    entries.add(new TreeEntry(TreeEntry.KEEP, path, null, target.size, target.checksum));
+                    continue;
+                }
+                String copy = null;
+                List<String> candidates = byContent.get(target.size + ":" + target.checksum);
+                if (candidates != null) {
+                    for (String candidate : candidates) {
+                        if (sources.get(candidate).matches(target)) {
+                            copy = candidate;
+                            break;
+                        }
+                    }
+                }
+                if (copy != null) {
+                    entries.add(new TreeEntry(TreeEntry.COPY, path, copy, target.size, target.checksum));
+                    continue;
+                }
+                final String base = (same != null) ? path : byName.get(target.file.getName());
+                entries.add(new TreeEntry(TreeEntry.PATCH, path, base, target.size, target.checksum));
+                final File patch = File.createTempFile("jbeat", ".bps", temporaryDirectory);
+                temporary.add(patch);
+                final Scanned source = (base == null) ? null : sources.get(base);
+                patches.add(pool.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() throws IOException {
+                        // a file made from nothing still needs a source to open
+                        PatchCreator creator = BatchCreator.creator(style, (source == null) ? target.file : source.file, target.file, patch);
+                        if (source == null) {
+                            creator.setSource(SegmentedBuffer.wrap(ByteBuffer.allocate(0)), 0, 0);
+                        } else {
+                            creator.setSource(source.map(), source.size, source.checksum);
+                        }
+                        creator.create();
+                        return patch.length();
+                    }
+                }));
+            }
+            for (String path : sources.keySet()) {
+                if (!targets.containsKey(path)) {
+                    entries.add(new TreeEntry(TreeEntry.DELETE, path, null, 0, 0));
+                }
+            }
+
+            // wait for every patch before failing
+            ExecutionException failure = null;
+            int patch = 0;
+            for (TreeEntry entry : entries) {
+                if (entry.kind == TreeEntry.PATCH) {
+                    try {
+                        entry.patchLength = patches.get(patch++).get();
+                    } catch (ExecutionException ex) {
+                        if (failure == null) {
+                            failure = ex;
+                        }
+                    }
+                }
+            }
+            if (failure != null) {
+                throw Shared.rethrow(failure);
+            }
+            write(entries, temporary);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted whilst creating tree patch");
+        } finally {
+            pool.shutdownNow();
+            for (File file : temporary) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Writes the manifest followed by each of the patches.
+     */
+    private void write(List<TreeEntry> entries, List<File> patches) throws IOException {
+        int size = TreeEntry.MAGIC.length + 10 + 4;
+        for (TreeEntry entry : entries) {
+            size += entry.encodedSize();
+        }
+        ByteBuffer manifest = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        manifest.put(TreeEntry.MAGIC);
+        PatchWriter.encode(manifest, entries.size());
+        for (TreeEntry entry : entries) {
+            entry.write(manifest);
+        }
+        manifest.putInt((int) Shared.checksum(manifest, manifest.position()));
+        manifest.flip();
+
+        FileOutputStream out = new FileOutputStream(output);
+        try {
+            FileChannel channel = out.getChannel();
+            while (manifest.hasRemaining()) {
+                channel.write(manifest);
+            }
+            for (File patch : patches) {
+                FileInputStream in = new FileInputStream(patch);
+                try {
+                    FileChannel from = in.getChannel();
+                    for (long position = 0, length = from.size(); position < length;) {
+                        position += from.transferTo(position, length - position, channel);
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Checksums every file concurrently.
+     */
+    private static Map<String, Scanned> scan(ForkJoinPool pool, Map<String, File> files) throws IOException, InterruptedException {
+        Map<String, Future<Scanned>> pending = new TreeMap<String, Future<Scanned>>();
+        for (Map.Entry<String, File> file : files.entrySet()) {
+            final File path = file.getValue();
+            pending.put(file.getKey(), pool.submit(new Callable<Scanned>() {
+                @Override
+                public Scanned call() throws IOException {
+                    return new Scanned(path);
+                }
+            }));
+        }
+        Map<String, Scanned> scanned = new TreeMap<String, Scanned>();
+        for (Map.Entry<String, Future<Scanned>> file : pending.entrySet()) {
+            try {
+                scanned.put(file.getKey(), file.getValue().get());
+            } catch (ExecutionException ex) {
+                throw Shared.rethrow(ex);
+            }
+        }
+        return scanned;
+    }
+
+    /**
+     * Lists every file beneath a directory by its path relative to it, in
+     * order. Linked directories are not followed.
+     */
+    private static Map<String, File> list(File directory) throws IOException {
+        if (!directory.isDirectory()) {
+            throw new FileNotFoundException("The directory \"" + directory + "\" does not exist!");
+        }
+        Map<String, File> files = new TreeMap<String, File>();
+        Deque<File> directories = new ArrayDeque<File>();
+        Deque<String> prefixes = new ArrayDeque<String>();
+        directories.push(directory);
+        prefixes.push("");
+        while (!directories.isEmpty()) {
+            File current = directories.pop();
+            String prefix = prefixes.pop();
+            File[] children = current.listFiles();
+            if (children == null) {
+                throw new IOException("Could not list the directory \"" + current + "\"!");
+            }
+            for (File child : children) {
+                if (child.isDirectory()) {
+                    if (!Files.isSymbolicLink(child.toPath())) {
+                        directories.push(child);
+                        prefixes.push(prefix + child.getName() + "/");
+                    }
+                } else if (child.isFile()) {
+                    files.put(prefix + child.getName(), child);
+                }
+            }
+        }
+        return files;
+    }
+
+    /**
+     * A file of either tree, with its size and checksum. Files are read
+     * rather than mapped to be checksummed and compared, and only mapped
+     * while differenced, so trees of many files do not run out of mappings.
+     */
+    private static final class Scanned {
+
+        private final File file;
+        private final long size, checksum;
+
+        Scanned(File file) throws IOException {
+            this.file = file;
+            FileInputStream in = new FileInputStream(file);
+            try {
+                FileChannel channel = in.getChannel();
+                ByteBuffer buffer = ByteBuffer.allocate(PatcherIO.BUFFER_SIZE);
+                CRC32 crc = new CRC32();
+                long size = 0;
+                while (channel.read(buffer) != -1) {
+                    crc.update(buffer.array(), 0, buffer.position());
+                    size += buffer.position();
+                    buffer.clear();
+                }
+                this.size = size;
+                this.checksum = crc.getValue();
+            } finally {
+                in.close();
+            }
+        }
+
+        /**
+         * Maps the file into memory, for as long as it is differenced.
+         */
+        SegmentedBuffer map() throws IOException {
+            RandomAccessFile in = new RandomAccessFile(file, "r");
+            try {
+                return SegmentedBuffer.map(in.getChannel(), FileChannel.MapMode.READ_ONLY, size);
+            } finally {
+                in.close();
+            }
+        }
+
+        /**
+         * Checks whether the file has the same content as another, reading
+         * both only if their sizes and checksums match.
+         */
+        boolean matches(Scanned other) throws IOException {
+            if (size != other.size || checksum != other.checksum) {
+                return false;
+            }
+            try (FileInputStream in = new FileInputStream(file); FileInputStream otherIn = new FileInputStream(other.file)) {
+                FileChannel channel = in.getChannel(), otherChannel = otherIn.getChannel();
+                ByteBuffer buffer = ByteBuffer.allocate(PatcherIO.BUFFER_SIZE), otherBuffer = ByteBuffer.allocate(PatcherIO.BUFFER_SIZE);
+                while (true) {
+                    fill(channel, buffer);
+                    fill(otherChannel, otherBuffer);
+                    if (!buffer.equals(otherBuffer)) {
+                        return false;
+                    }
+                    if (buffer.limit() < buffer.capacity()) {
+                        return true;
+                    }
+                    buffer.clear();
+                    otherBuffer.clear();
+                }
+            }
+        }
+
+        /**
+         * Reads until the buffer is full or the file ends, and flips it.
+         */
+        private static void fill(FileChannel channel, ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) == -1) {
+                    break;
+                }
+            }
+            buffer.flip();
+        }
+    }
+
+    public static void main(final String[] arguments) throws IOException {
+        if (arguments == null || arguments.length != 4) {//Check for valid arguments
+            System.out.println("You must have valid arguments!");
+            System.out.println("The first argument, should be the style of patch to create for each changed file: linear, delta or block.");
+            System.out.println("The second argument, should be where the source directory is located (the original tree which the patch applies to).");
+            System.out.println("The third argument, should be where the modified directory is located.");
+            System.out.println("The fourth argument, should be where the patch should be put.");
+            return;
+        }
+        BatchCreator.Style style;
+        try {
+            style = BatchCreator.Style.valueOf(arguments[0].toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException ex) {
+            System.out.println("Unknown patch style \"" + arguments[0] + "\"!");
+            return;
+        }
+        new TreeCreator(new File(arguments[1]), new File(arguments[2]), new File(arguments[3]), style).create();
+    }
+}
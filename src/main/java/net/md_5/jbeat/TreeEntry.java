@@ -0,0 +1,187 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * A single file of a tree patch, as written in its manifest. A tree patch is
+ * laid out as follows, with numbers in the variable length form of beat and
+ * checksums as four little endian bytes:
+ * <pre>
+ * "BTR1"
+ * number of entries
+ * each entry:
+ *     kind, one byte
+ *     path, a string
+ *     for COPY and PATCH: path of the source file used, a string which is
+ *         empty for a file patched from nothing
+ *     except for DELETE: size and crc32 of the target file
+ *     for PATCH: size of its beat patch
+ * crc32 of everything above
+ * the beat patch of each PATCH entry, in order
+ * </pre>
+ * Strings are UTF-8 prefixed with their length, and paths are relative to the
+ * root of the tree, separated by '/'.
+ */
+final class TreeEntry {
+
+    /**
+     * The tree patch header.
+     */
+    static final byte[] MAGIC = new byte[]{'B', 'T', 'R', '1'};
+    /**
+     * The file is the same as the source file of the same path.
+     */
+    static final int KEEP = 0;
+    /**
+     * The file is the same as another source file.
+     */
+    static final int COPY = 1;
+    /**
+     * The file is created by applying a beat patch to a source file, or to
+     * nothing.
+     */
+    static final int PATCH = 2;
+    /**
+     * The source file no longer exists in the target.
+     */
+    static final int DELETE = 3;
+    /**
+     * One of the kinds above.
+     */
+    final int kind;
+    /**
+     * Path of the file within the tree.
+     */
+    final String path;
+    /**
+     * Path of the source file which the file is made from, or null for none.
+     */
+    final String base;
+    /**
+     * Size and crc32 of the target file.
+     */
+    final long size, checksum;
+    /**
+     * Size of the beat patch of a PATCH entry.
+     */
+    long patchLength;
+
+    TreeEntry(int kind, String path, String base, long size, long checksum) {
+        this.kind = kind;
+        this.path = path;
+        this.base = base;
+        this.size = size;
+        this.checksum = checksum;
+    }
+
+    /**
+     * Returns an upper bound on the number of bytes the entry is written as.
+     */
+    int encodedSize() {
+        return 1 + 10 + path.getBytes(Shared.CHARSET).length + 10 + ((base == null) ? 0 : base.getBytes(Shared.CHARSET).length) + 10 + 4 + 10;
+    }
+
+    /**
+     * Writes the entry at the position of a little endian buffer.
+     */
+    void write(ByteBuffer out) {
+        out.put((byte) kind);
+        writeString(out, path);
+        if (kind == COPY || kind == PATCH) {
+            writeString(out, base);
+        }
+        if (kind != DELETE) {
+            PatchWriter.encode(out, size);
+            out.putInt((int) checksum);
+        }
+        if (kind == PATCH) {
+            PatchWriter.encode(out, patchLength);
+        }
+    }
+
+    /**
+     * Reads an entry from the position of a little endian buffer.
+     */
+    static TreeEntry read(ByteBuffer in) throws IOException {
+        try {
+            int kind = in.get();
+            if (kind < KEEP || kind > DELETE) {
+                throw new IOException("Unknown tree patch entry kind " + kind + "!");
+            }
+            String path = PatcherIO.readString(in);
+            if (path == null) {
+                throw new IOException("Tree patch entry has no path!");
+            }
+            String base = (kind == COPY || kind == PATCH) ? PatcherIO.readString(in) : null;
+            if (kind == COPY && base == null) {
+                throw new IOException("Tree patch copy entry has no source!");
+            }
+            long size = 0, checksum = 0;
+            if (kind != DELETE) {
+                size = PatcherIO.decode(in);
+                checksum = PatcherIO.readInt(in);
+            }
+            TreeEntry entry = new TreeEntry(kind, path, base, size, checksum);
+            if (kind == PATCH) {
+                entry.patchLength = PatcherIO.decode(in);
+            }
+            return entry;
+        } catch (BufferUnderflowException ex) {
+            throw new IOException("Tree patch is truncated!");
+        } catch (IllegalArgumentException ex) {
+            throw new IOException("Tree patch is truncated!");
+        }
+    }
+
+    /**
+     * Resolves a path of the tree against a directory, rejecting any path
+     * which would lead outside of it.
+     */
+    static File resolve(File directory, String path) throws IOException {
+        File file = directory;
+        for (String name : path.split("/", -1)) {
+            if (name.isEmpty() || name.equals(".") || name.equals("..") || name.indexOf('\\') != -1 || name.indexOf(':') != -1) {
+                throw new IOException("Tree patch path \"" + path + "\" is not valid!");
+            }
+            file = new File(file, name);
+        }
+        return file;
+    }
+
+    private static void writeString(ByteBuffer out, String value) {
+        byte[] encoded = (value == null) ? new byte[0] : value.getBytes(Shared.CHARSET);
+        PatchWriter.encode(out, encoded.length);
+        out.put(encoded);
+    }
+}
@@ -0,0 +1,447 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Applies a patch created by {@link TreeCreator} to a directory tree. Each
+ * file is produced concurrently, straight into its place in the target tree,
+ * and checked against the checksum in the manifest. Unchanged files are only
+ * checksummed when the tree is patched in place, and copied otherwise. <p>
+ * When the target directory is the source directory, changed files are first
+ * written to a staging directory within it, as other files may still be made
+ * from the files they replace, and are only moved into place, and removed
+ * files deleted, once every file has been produced successfully. Files removed
+ * or replaced are moved aside into the staging directory as the others are
+ * moved into place, and moved back should any move fail, in which case the
+ * staging directory is kept.
+ */
+public final class TreePatcher {
+
+    /**
+     * The tree patch file.
+     */
+    private final File patchFile;
+    /**
+     * The original tree from which the patch was created.
+     */
+    private final File sourceDirectory;
+    /**
+     * The location to which the patched tree will be output.
+     */
+    private final File targetDirectory;
+    /**
+     * Number of files produced at once.
+     */
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Create a new tree patcher instance. In order to complete the patch
+     * process {@link #patch()} method must be called.
+     *
+     * @param patchFile the tree patch file
+     * @param sourceDirectory original tree from which the patch was created
+     * @param targetDirectory location to which the patched tree will be
+     * output, which may be the source directory to patch it in place
+     */
+    public TreePatcher(File patchFile, File sourceDirectory, File targetDirectory) {
+        this.patchFile = patchFile;
+        this.sourceDirectory = sourceDirectory;
+        this.targetDirectory = targetDirectory;
+    }
+
+    /**
+     * Sets the number of files produced at once, the number of processors by
+     * default.
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Threads must be at least 1");
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * Applies the patch. If producing any file fails the first failure is
+     * thrown, once those already running have finished, and a tree patched in
+     * place is left untouched.
+     */
+    public void patch() throws IOException {
+        // map the patch file into memory
+        final SegmentedBuffer patch;
+        RandomAccessFile in = new RandomAccessFile(patchFile, "r");
+        try {
+            patch = SegmentedBuffer.map(in.getChannel(), FileChannel.MapMode.READ_ONLY, in.length());
+        } finally {
+            in.close();
+        }
+
+        // read and check the manifest, which must lie within the first segment
+        ByteBuffer manifest = patch.view(0, patch.size()).order(ByteOrder.LITTLE_ENDIAN);
+        List<TreeEntry> entries = new ArrayList<TreeEntry>();
+        for (byte b : TreeEntry.MAGIC) {
+            if (manifest.remaining() == 0 || manifest.get() != b) {
+                throw new IOException("Patch file does not have the correct tree patch header!");
+            }
+        }
+        long count = PatcherIO.decode(manifest);
+        for (long i = 0; i < count; i++) {
+            entries.add(TreeEntry.read(manifest));
+        }
+        long checksum = Shared.checksum(manifest, manifest.position());
+        if (manifest.remaining() < 4 || PatcherIO.readInt(manifest) != checksum) {
+            throw new IOException("Tree patch manifest checksum does not match!");
+        }
+
+        final boolean inPlace = sourceDirectory.getCanonicalFile().equals(targetDirectory.getCanonicalFile());
+        File staging = null;
+        boolean keep = false;
+        List<File> outputs = new ArrayList<File>();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            if (inPlace) {
+                staging = Files.createTempDirectory(targetDirectory.toPath(), ".jbeat").toFile();
+            }
+            // find the patch of each file before starting on any
+            long[] offsets = new long[entries.size()];
+            long offset = manifest.position();
+            for (int i = 0; i < entries.size(); i++) {
+                TreeEntry entry = entries.get(i);
+                TreeEntry.resolve(sourceDirectory, (entry.base != null) ? entry.base : entry.path);
+                TreeEntry.resolve(targetDirectory, entry.path);
+                if (entry.kind == TreeEntry.PATCH) {
+                    if (entry.patchLength > patch.size() - offset) {
+                        throw new IOException("Tree patch is truncated!");
+                    }
+                    offsets[i] = offset;
+                    offset += entry.patchLength;
+                }
+            }
+            if (offset != patch.size()) {
+                throw new IOException("Patch file does not end after its last patch!");
+            }
+
+            List<Future<Void>> files = new ArrayList<Future<Void>>();
+            for (int i = 0; i < entries.size(); i++) {
+                final TreeEntry entry = entries.get(i);
+                if (entry.kind == TreeEntry.DELETE) {
+                    outputs.add(null);
+                    continue;
+                }
+                final File source = TreeEntry.resolve(sourceDirectory, (entry.base != null) ? entry.base : entry.path);
+                final File output = (!inPlace) ? TreeEntry.resolve(targetDirectory, entry.path)
+                        : (entry.kind == TreeEntry.KEEP) ? null : new File(staging, Integer.toString(i));
+                outputs.add(output);
+                final long data = offsets[i];
+                files.add(pool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        if (output != null && output.getParentFile() != null) {
+                            mkdirs(output.getParentFile());
+                        }
+                        if (entry.kind == TreeEntry.PATCH) {
+                            apply(PatchReader.of(patch, data, entry.patchLength), (entry.base == null) ? null : source, output, entry);
+                        } else {
+                            copy(source, output, entry);
+                        }
+                        return null;
+                    }
+                }));
+            }
+
+            // wait for every file before failing
+            ExecutionException failure = null;
+            for (Future<Void> file : files) {
+                try {
+                    file.get();
+                } catch (ExecutionException ex) {
+                    if (failure == null) {
+                        failure = ex;
+                    }
+                }
+            }
+            if (failure != null) {
+                throw Shared.rethrow(failure);
+            }
+
+            if (inPlace) {
+                // a failed commit leaves the files it moved aside in staging
+                keep = true;
+                commit(entries, outputs, staging);
+                keep = false;
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted whilst applying tree patch");
+        } finally {
+            pool.shutdownNow();
+            if (staging != null && !keep) {
+                for (File staged : outputs) {
+                    if (staged != null) {
+                        staged.delete();
+                    }
+                }
+                staging.delete();
+            }
+        }
+    }
+
+    /**
+     * Moves the staged files into place in the target directory, removing the
+     * deleted files and any directories they leave empty first, as those may
+     * be files in the target. Each file removed or replaced is moved aside
+     * into the staging directory, and should any step fail every step done is
+     * undone in reverse, restoring the tree.
+     */
+    private void commit(List<TreeEntry> entries, List<File> outputs, File staging) throws IOException {
+        // each step as the file moved from and to, with null for a directory
+        // created or removed
+        List<File[]> done = new ArrayList<File[]>();
+        List<File> aside = new ArrayList<File>();
+        try {
+            for (int i = 0; i < entries.size(); i++) {
+                File file = TreeEntry.resolve(targetDirectory, entries.get(i).path);
+                if (entries.get(i).kind == TreeEntry.DELETE && file.isFile()) {
+                    File old = new File(staging, "old" + i);
+                    move(file, old);
+                    done.add(new File[]{file, old});
+                    aside.add(old);
+                    for (File directory = file.getParentFile(); !directory.equals(targetDirectory) && directory.delete(); directory = directory.getParentFile()) {
+                        done.add(new File[]{directory, null});
+                    }
+                }
+            }
+            for (int i = 0; i < entries.size(); i++) {
+                File staged = outputs.get(i);
+                if (staged != null) {
+                    File destination = TreeEntry.resolve(targetDirectory, entries.get(i).path);
+                    mkdirs(destination.getParentFile(), done);
+                    if (destination.isFile()) {
+                        File old = new File(staging, "old" + i);
+                        move(destination, old);
+                        done.add(new File[]{destination, old});
+                        aside.add(old);
+                    }
+                    move(staged, destination);
+                    done.add(new File[]{staged, destination});
+                }
+            }
+        } catch (IOException ex) {
+            try {
+                undo(done);
+            } catch (IOException restore) {
+                ex.addSuppressed(restore);
+                throw new IOException("Could not move the patched files into place nor restore the tree, the files removed or replaced are kept in \"" + staging + "\"!", ex);
+            }
+            throw new IOException("Could not move the patched files into place, the tree has been restored and the patched files are kept in \"" + staging + "\"!", ex);
+        }
+        for (File old : aside) {
+            old.delete();
+        }
+    }
+
+    /**
+     * Undoes the steps of a commit in reverse, carrying on past any which
+     * fail, and then throwing the first failure.
+     */
+    private static void undo(List<File[]> done) throws IOException {
+        IOException failure = null;
+        for (int i = done.size() - 1; i >= 0; i--) {
+            File from = done.get(i)[0], to = done.get(i)[1];
+            try {
+                if (from == null) {
+                    Files.delete(to.toPath());
+                } else if (to == null) {
+                    mkdirs(from);
+                } else {
+                    move(to, from);
+                }
+            } catch (IOException ex) {
+                if (failure == null) {
+                    failure = ex;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Applies the beat patch of a single file, checking all three of its
+     * checksums and that it produces the file described by its entry.
+     *
+     * @param source the file it applies to, or null for none
+     */
+    private static void apply(PatchReader reader, File source, File output, TreeEntry entry) throws IOException {
+        reader.readHeader();
+        final long sourceSize = reader.getSourceSize();
+        final long targetSize = reader.getTargetSize();
+        if (targetSize != entry.size) {
+            throw new IOException("Patch of \"" + entry.path + "\" does not produce the file in the manifest!");
+        }
+
+        // map as much of the source file as we need into memory
+        SegmentedBuffer sourceData = SegmentedBuffer.wrap(ByteBuffer.allocate(0));
+        if (source != null) {
+            RandomAccessFile sourceFile = new RandomAccessFile(source, "r");
+            try {
+                if (sourceFile.length() < sourceSize) {
+                    throw new IOException("Source file \"" + entry.base + "\" is smaller than the patch expects!");
+                }
+                sourceData = SegmentedBuffer.map(sourceFile.getChannel(), FileChannel.MapMode.READ_ONLY, sourceSize);
+            } finally {
+                sourceFile.close();
+            }
+        } else if (sourceSize != 0) {
+            throw new IOException("Patch of \"" + entry.path + "\" needs a source file!");
+        }
+
+        // size the target and map it into memory
+        RandomAccessFile targetFile = new RandomAccessFile(output, "rw");
+        SegmentedBuffer target;
+        try {
+            targetFile.setLength(targetSize);
+            target = SegmentedBuffer.map(targetFile.getChannel(), FileChannel.MapMode.READ_WRITE, targetSize);
+        } finally {
+            targetFile.close();
+        }
+
+        // do the actual patching
+        while (reader.next()) {
+            PatcherIO.apply(reader, sourceData, target);
+        }
+        reader.readFooter();
+        if (sourceData.checksum(0, sourceSize) != reader.getSourceChecksum()) {
+            throw new IOException("Source checksum of \"" + entry.path + "\" does not match!");
+        }
+        if (reader.getComputedPatchChecksum() != reader.getPatchChecksum()) {
+            throw new IOException("Patch checksum of \"" + entry.path + "\" does not match!");
+        }
+        long targetChecksum = target.checksum(0, targetSize);
+        if (targetChecksum != reader.getTargetChecksum() || targetChecksum != entry.checksum) {
+            throw new IOException("Target checksum of \"" + entry.path + "\" does not match!");
+        }
+    }
+
+    /**
+     * Checks that a source file is the file described by its entry, and then
+     * copies it to the output, if any.
+     */
+    private static void copy(File source, File output, TreeEntry entry) throws IOException {
+        RandomAccessFile sourceFile = new RandomAccessFile(source, "r");
+        try {
+            if (sourceFile.length() != entry.size) {
+                throw new IOException("Source file \"" + ((entry.base != null) ? entry.base : entry.path) + "\" is not the size the patch expects!");
+            }
+            FileChannel from = sourceFile.getChannel();
+            SegmentedBuffer data = SegmentedBuffer.map(from, FileChannel.MapMode.READ_ONLY, entry.size);
+            if (data.checksum(0, entry.size) != entry.checksum) {
+                throw new IOException("Source checksum of \"" + ((entry.base != null) ? entry.base : entry.path) + "\" does not match!");
+            }
+            if (output != null) {
+                RandomAccessFile targetFile = new RandomAccessFile(output, "rw");
+                try {
+                    targetFile.setLength(0);
+                    FileChannel to = targetFile.getChannel();
+                    for (long position = 0; position < entry.size;) {
+                        position += from.transferTo(position, entry.size - position, to);
+                    }
+                } finally {
+                    targetFile.close();
+                }
+            }
+        } finally {
+            sourceFile.close();
+        }
+    }
+
+    private static void mkdirs(File directory) throws IOException {
+        if (!directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException("Could not create the directory \"" + directory + "\"!");
+        }
+    }
+
+    /**
+     * Creates a directory and any missing parents, noting each one created as
+     * a commit step.
+     */
+    private static void mkdirs(File directory, List<File[]> done) throws IOException {
+        if (!directory.isDirectory()) {
+            mkdirs(directory.getParentFile(), done);
+            if (!directory.mkdir()) {
+                throw new IOException("Could not create the directory \"" + directory + "\"!");
+            }
+            done.add(new File[]{null, directory});
+        }
+    }
+
+    private static void move(File from, File to) throws IOException {
+        try {
+            Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    public static void main(final String[] arguments) throws IOException {
+        if (arguments == null || arguments.length != 3) {//Check for valid arguments
+            System.out.println("You must have valid arguments!");
+            System.out.println("The first argument, should be where the tree patch file is located.");
+            System.out.println("The second argument, should be where the source directory is located (the original tree which the patch applies to).");
+            System.out.println("The third argument, should be where the patched tree should be put, which may be the source directory to patch it in place.");
+            return;
+        }
+        File patchFile = new File(arguments[0]), sourceDirectory = new File(arguments[1]), targetDirectory = new File(arguments[2]);
+        if (!patchFile.exists()) {//Check if the patch file exists, if it doesn't, throw a FileNotFoundException.
+            throw new FileNotFoundException("The patch file does not exist at location \"" + arguments[0] + "\"!");
+        }
+        if (!sourceDirectory.isDirectory()) {//Check if the source directory exists, if it doesn't, throw a FileNotFoundException.
+            throw new FileNotFoundException("The source directory does not exist at location \"" + arguments[1] + "\"!");
+        }
+        new TreePatcher(patchFile, sourceDirectory, targetDirectory).patch();
+    }
+}
@@ -0,0 +1,159 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Frequency;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Records each patch created or applied as a Java Flight Recorder event. Only
+ * loaded through {@link PatchMetrics#flightRecorder()}, once the flight
+ * recorder is known to be present. Built against JDK 11 into the
+ * {@code META-INF/versions/11} layer of the jar, as the rest of the library
+ * still targets Java 8.
+ */
+final class JfrMetrics implements PatchMetrics {
+
+    @Override
+    public void created(PatchStats stats) {
+        Created event = new Created();
+        if (event.shouldCommit()) {
+            event.fill(stats);
+            event.indexTime = stats.getNanos(PatchStats.Phase.INDEX);
+            event.diffTime = stats.getNanos(PatchStats.Phase.DIFF);
+            event.commit();
+        }
+    }
+
+    @Override
+    public void applied(PatchStats stats) {
+        Applied event = new Applied();
+        if (event.shouldCommit()) {
+            event.fill(stats);
+            event.applyTime = stats.getNanos(PatchStats.Phase.APPLY);
+            event.commit();
+        }
+    }
+
+    /**
+     * Fields common to patches created and applied.
+     */
+    @Category("jbeat")
+    abstract static class Patch extends Event {
+
+        @Label("Source Size")
+        @DataAmount
+        long sourceSize;
+        @Label("Target Size")
+        @DataAmount
+        long targetSize;
+        @Label("Patch Size")
+        @DataAmount
+        long patchSize;
+        @Label("Commands")
+        long commands;
+        @Label("Source Read")
+        @DataAmount
+        long sourceRead;
+        @Label("Target Read")
+        @DataAmount
+        long targetRead;
+        @Label("Source Copy")
+        @DataAmount
+        long sourceCopy;
+        @Label("Target Copy")
+        @DataAmount
+        long targetCopy;
+        @Label("Map Time")
+        @Timespan
+        long mapTime;
+        @Label("Checksum Time")
+        @Timespan
+        long checksumTime;
+        @Label("Write Time")
+        @Timespan
+        long writeTime;
+        @Label("Total Time")
+        @Timespan
+        long totalTime;
+        @Label("Throughput")
+        @DataAmount
+        @Frequency
+        long throughput;
+        @Label("Peak Buffers")
+        @DataAmount
+        long peakBuffers;
+
+        void fill(PatchStats stats) {
+            sourceSize = stats.getSourceSize();
+            targetSize = stats.getTargetSize();
+            patchSize = stats.getPatchSize();
+            commands = stats.getCommands();
+            sourceRead = stats.getBytes(PatchReader.SOURCE_READ);
+            targetRead = stats.getBytes(PatchReader.TARGET_READ);
+            sourceCopy = stats.getBytes(PatchReader.SOURCE_COPY);
+            targetCopy = stats.getBytes(PatchReader.TARGET_COPY);
+            mapTime = stats.getNanos(PatchStats.Phase.MAP);
+            checksumTime = stats.getNanos(PatchStats.Phase.CHECKSUM);
+            writeTime = stats.getNanos(PatchStats.Phase.WRITE);
+            totalTime = stats.getTotalNanos();
+            throughput = (long) stats.getThroughput();
+            peakBuffers = stats.getPeakBufferBytes();
+        }
+    }
+
+    @Name("net.md_5.jbeat.PatchCreated")
+    @Label("Patch Created")
+    @Description("A beat patch was created")
+    static final class Created extends Patch {
+
+        @Label("Index Time")
+        @Timespan
+        long indexTime;
+        @Label("Diff Time")
+        @Timespan
+        long diffTime;
+    }
+
+    @Name("net.md_5.jbeat.PatchApplied")
+    @Label("Patch Applied")
+    @Description("A beat patch was applied")
+    static final class Applied extends Patch {
+
+        @Label("Apply Time")
+        @Timespan
+        long applyTime;
+    }
+}
@@ -0,0 +1,176 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs a {@link PatchDaemon} on the loopback interface and drives it through
+ * {@link PatchClient}.
+ */
+public class PatchDaemonTest {
+
+    private File directory;
+    private PatchDaemon daemon;
+    private File source, target;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("jbeat").toFile();
+        Random random = new Random(1);
+        byte[] original = new byte[1 << 20];
+        random.nextBytes(original);
+        byte[] modified = original.clone();
+        for (int i = 0; i < 64; i++) {
+            modified[random.nextInt(modified.length)] ^= 1;
+        }
+        source = write("source", original);
+        target = write("target", modified);
+        daemon = new PatchDaemon(0, 2, PatchDaemon.DEFAULT_CACHE_BUDGET, new File(directory, "daemon.token"));
+        daemon.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        daemon.close();
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    private File write(String name, byte[] data) throws IOException {
+        File file = new File(directory, name);
+        Files.write(file.toPath(), data);
+        return file;
+    }
+
+    private PatchClient connect() throws IOException {
+        return new PatchClient(daemon.getPort(), daemon.getTokenFile());
+    }
+
+    @Test
+    public void createApplyVerify() throws IOException {
+        File patch = new File(directory, "patch"), output = new File(directory, "output");
+        PatchClient client = connect();
+        try {
+            for (BatchCreator.Style style : BatchCreator.Style.values()) {
+                long length = client.create(style, source, target, patch);
+                assertEquals(patch.length(), length);
+                client.verify(patch, source);
+                client.apply(patch, source, output);
+                assertArrayEquals(style.name(), Files.readAllBytes(target.toPath()), Files.readAllBytes(output.toPath()));
+            }
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void verifyRejectsDamagedPatch() throws IOException {
+        File patch = new File(directory, "patch");
+        PatchClient client = connect();
+        try {
+            client.create(BatchCreator.Style.BLOCK, source, target, patch);
+            RandomAccessFile file = new RandomAccessFile(patch, "rw");
+            try {
+                file.seek(file.length() / 2);
+                int b = file.read();
+                file.seek(file.length() / 2);
+                file.write(b ^ 0xFF);
+            } finally {
+                file.close();
+            }
+            try {
+                client.verify(patch, source);
+                fail("Damaged patch was verified");
+            } catch (IOException expected) {
+            }
+            // the connection is still usable after a failed request
+            client.create(BatchCreator.Style.BLOCK, source, target, patch);
+            client.verify(patch, source);
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void refusesRequestWithoutToken() throws IOException {
+        File output = new File(directory, "stolen");
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), daemon.getPort());
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.write(new byte[PatchDaemon.TOKEN_LENGTH]);
+            out.writeByte(PatchDaemon.CREATE);
+            out.writeByte(4);
+            out.writeUTF(BatchCreator.Style.LINEAR.name());
+            out.writeUTF(source.getAbsolutePath());
+            out.writeUTF(target.getAbsolutePath());
+            out.writeUTF(output.getAbsolutePath());
+            out.flush();
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            assertFalse(in.readBoolean());
+            in.readUTF();
+            assertEquals(-1, in.read());
+        } finally {
+            socket.close();
+        }
+        assertFalse(output.exists());
+    }
+
+    @Test
+    public void tokenFileIsPrivate() throws IOException {
+        Path token = daemon.getTokenFile().toPath();
+        assumeTrue(token.getFileSystem().supportedFileAttributeViews().contains("posix"));
+        assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(token)));
+        daemon.close();
+        assertFalse(Files.exists(token));
+    }
+}
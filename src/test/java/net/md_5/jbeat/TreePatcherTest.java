@@ -0,0 +1,221 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Creates a patch between two trees with {@link TreeCreator} and applies it
+ * with {@link TreePatcher}, both to a new directory and in place.
+ */
+public class TreePatcherTest {
+
+    private File directory;
+    private File source, target;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("jbeat").toFile();
+        source = new File(directory, "source");
+        target = new File(directory, "target");
+        Random random = new Random(1);
+        byte[] same = bytes(random, 4096), changed = bytes(random, 200000), moved = bytes(random, 8192);
+        byte[] duplicated = bytes(random, 1000), deleted = bytes(random, 500), swapped = bytes(random, 3000);
+        byte[] modified = changed.clone();
+        for (int i = 0; i < 32; i++) {
+            modified[random.nextInt(modified.length)] ^= 1;
+        }
+
+        write(source, "same.bin", same);
+        write(source, "changed.bin", changed);
+        write(source, "old/moved.bin", moved);
+        write(source, "duplicated.bin", duplicated);
+        write(source, "deleted.bin", deleted);
+        // a file which becomes a directory, and a directory which becomes a file
+        write(source, "swap", swapped);
+        write(source, "folder/inner.bin", swapped);
+        write(source, "folder/deeper/inner.bin", same);
+
+        write(target, "same.bin", same);
+        write(target, "changed.bin", modified);
+        write(target, "new/moved.bin", moved);
+        write(target, "duplicated.bin", duplicated);
+        write(target, "copies/duplicated.bin", duplicated);
+        write(target, "fresh.bin", bytes(random, 7000));
+        write(target, "swap/inner.bin", modified);
+        write(target, "folder", bytes(random, 600));
+    }
+
+    @After
+    public void tearDown() {
+        delete(directory);
+    }
+
+    private static byte[] bytes(Random random, int length) {
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+        return data;
+    }
+
+    private static void write(File root, String path, byte[] data) throws IOException {
+        File file = new File(root, path);
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), data);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Lists every file and directory beneath a directory by its path, with the
+     * contents of each file and null for directories.
+     */
+    private static Map<String, byte[]> tree(File root) throws IOException {
+        Map<String, byte[]> tree = new TreeMap<String, byte[]>();
+        list(root, "", tree);
+        return tree;
+    }
+
+    private static void list(File directory, String prefix, Map<String, byte[]> tree) throws IOException {
+        for (File child : directory.listFiles()) {
+            if (child.isDirectory()) {
+                tree.put(prefix + child.getName() + "/", null);
+                list(child, prefix + child.getName() + "/", tree);
+            } else {
+                tree.put(prefix + child.getName(), Files.readAllBytes(child.toPath()));
+            }
+        }
+    }
+
+    private static void assertTreeEquals(Map<String, byte[]> expected, File root) throws IOException {
+        Map<String, byte[]> actual = tree(root);
+        assertEquals(expected.keySet(), actual.keySet());
+        for (Map.Entry<String, byte[]> file : expected.entrySet()) {
+            if (file.getValue() != null) {
+                assertArrayEquals(file.getKey(), file.getValue(), actual.get(file.getKey()));
+            }
+        }
+    }
+
+    @Test
+    public void patchToNewDirectory() throws IOException {
+        Map<String, byte[]> expected = tree(target);
+        Map<String, byte[]> original = tree(source);
+        for (BatchCreator.Style style : BatchCreator.Style.values()) {
+            File patch = new File(directory, "patch-" + style), output = new File(directory, "output-" + style);
+            new TreeCreator(source, target, patch, style).create();
+            new TreePatcher(patch, source, output).patch();
+            assertTreeEquals(expected, output);
+            assertTreeEquals(original, source);
+        }
+    }
+
+    @Test
+    public void patchInPlace() throws IOException {
+        Map<String, byte[]> expected = tree(target);
+        File patch = new File(directory, "patch");
+        new TreeCreator(source, target, patch, BatchCreator.Style.BLOCK).create();
+        new TreePatcher(patch, source, source).patch();
+        // the staging directory is gone, as are directories left empty
+        assertTreeEquals(expected, source);
+    }
+
+    @Test
+    public void failedPatchLeavesTreeUntouched() throws IOException {
+        File patch = new File(directory, "patch");
+        new TreeCreator(source, target, patch, BatchCreator.Style.BLOCK).create();
+        // change a file after the patch was made, so its patch fails
+        write(source, "changed.bin", new byte[200000]);
+        Map<String, byte[]> original = tree(source);
+        try {
+            new TreePatcher(patch, source, source).patch();
+            fail("Patch applied to a changed file");
+        } catch (IOException ex) {
+            // expected
+        }
+        assertTreeEquals(original, source);
+    }
+
+    @Test
+    public void failedCommitRestoresTree() throws IOException {
+        File patch = new File(directory, "patch");
+        new TreeCreator(source, target, patch, BatchCreator.Style.BLOCK).create();
+        // a file unknown to the patch keeps the directory from becoming a file
+        write(source, "folder/untracked.bin", new byte[10]);
+        Map<String, byte[]> original = tree(source);
+        try {
+            new TreePatcher(patch, source, source).patch();
+            fail("Patch replaced a directory which is not empty");
+        } catch (IOException ex) {
+            // expected
+        }
+        // the tree is restored, and the patched files kept in staging
+        Map<String, byte[]> restored = tree(source);
+        String staging = null;
+        for (String path : restored.keySet()) {
+            if (path.startsWith(".jbeat") && path.indexOf('/') == path.length() - 1) {
+                staging = path;
+            }
+        }
+        if (staging == null) {
+            fail("Staging directory was not kept");
+        }
+        for (Iterator<String> it = restored.keySet().iterator(); it.hasNext();) {
+            if (it.next().startsWith(staging)) {
+                it.remove();
+            }
+        }
+        assertEquals(original.keySet(), restored.keySet());
+        for (Map.Entry<String, byte[]> file : original.entrySet()) {
+            if (file.getValue() != null) {
+                assertArrayEquals(file.getKey(), file.getValue(), restored.get(file.getKey()));
+            }
+        }
+    }
+}